@@ -1,2 +1,3 @@
 #!/bin/bash
+mvn -q -f ../common/pom.xml install
 mvn clean javafx:run
\ No newline at end of file
@@ -0,0 +1,283 @@
+package com.example.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
+import com.example.crdt.TextChange;
+import com.example.network.NetworkManager;
+
+import javafx.application.Platform;
+
+/**
+ * Owns the CRDT replica of a document on a dedicated thread.
+ *
+ * The FX thread only reports what the user typed and renders the text
+ * changes handed back to it, so no CRDT work runs on the FX thread. The two
+ * copies of the text are kept in step by a pair of {@link ChangeChannel}s.
+ */
+public class CRDTWorker {
+    private static final long ACK_INTERVAL_MS = 1000;
+
+    private final NetworkManager networkManager;
+    private final ScheduledExecutorService executor;
+
+    // Only used on the worker thread
+    private final CRDTManager crdtManager;
+    private final OperationsManager operationsManager;
+    private final ChangeChannel workerChannel = new ChangeChannel(false);
+    private long lastAckedSeq = 0;
+    private final int siteId;
+
+    // Operations sent but not echoed yet, replayed if the server resyncs us
+    private final Deque<CRDTOperation> unconfirmed = new ArrayDeque<>();
+
+    // Until the join snapshot is loaded the replica has to stay empty
+    private boolean joined = false;
+    private final List<Runnable> waitingForSnapshot = new ArrayList<>();
+
+    // Only used on the FX thread
+    private final ChangeChannel editorChannel = new ChangeChannel(true);
+    private Consumer<List<TextChange>> onChanges;
+
+    // Remote operations received since the last drain on the worker thread
+    private final Queue<CRDTOperation> incomingOperations = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    public CRDTWorker(int siteId, NetworkManager networkManager, OperationsManager operationsManager) {
+        this.networkManager = networkManager;
+        this.siteId = siteId;
+        this.crdtManager = new CRDTManager(siteId);
+        this.operationsManager = operationsManager;
+
+        // Messages still arriving after close() are dropped, not rejected
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "crdt-worker");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.scheduleWithFixedDelay(this::sendAcknowledgement,
+                ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the handler that renders changes on the FX thread. Each list is
+     * applied in order to the editor's current text.
+     */
+    public void setOnChanges(Consumer<List<TextChange>> onChanges) {
+        this.onChanges = onChanges;
+    }
+
+    /**
+     * Called on the FX thread after the user edited the text
+     */
+    public void submitLocalEdit(int position, String inserted, String removed) {
+        TextChange edit = new TextChange(position, position + removed.length(), inserted);
+        ChangeChannel.Message message = editorChannel.send(Collections.singletonList(edit));
+        executeWhenJoined(() -> integrateLocalEdit(message));
+    }
+
+    /**
+     * Called on the FX thread to insert a file's content at the start of the document
+     */
+    public void importText(String content) {
+        executeWhenJoined(() -> {
+            if (!content.isEmpty()) {
+                for (CRDTOperation op : crdtManager.createInsertOperations(content, 0)) {
+                    send(op);
+                }
+            }
+            operationsManager.clearHistory();
+
+            if (!content.isEmpty()) {
+                publish(Collections.singletonList(new TextChange(0, 0, content)));
+            }
+        });
+    }
+
+    public void undo() {
+        executeWhenJoined(() -> applyLocalOperation(operationsManager.undo()));
+    }
+
+    public void redo() {
+        executeWhenJoined(() -> applyLocalOperation(operationsManager.redo()));
+    }
+
+    /**
+     * Called on the network thread with the document state sent on joining,
+     * or later when the server dropped operations it could not deliver
+     */
+    public void receiveSnapshot(CRDTSnapshot snapshot) {
+        executor.execute(() -> {
+            if (joined) {
+                resync(snapshot);
+                return;
+            }
+
+            crdtManager.loadSnapshot(snapshot);
+            joined = true;
+
+            String text = crdtManager.buildText();
+            if (!text.isEmpty()) {
+                publish(Collections.singletonList(new TextChange(0, 0, text)));
+            }
+
+            // Local edits made meanwhile are rebased past the snapshot text
+            for (Runnable task : waitingForSnapshot) {
+                task.run();
+            }
+            waitingForSnapshot.clear();
+            drainRemoteOperations();
+        });
+    }
+
+    /**
+     * Called on the network thread for every operation broadcast by the server
+     */
+    public void receiveRemoteOperation(CRDTOperation op) {
+        incomingOperations.add(op);
+
+        // One drain picks up everything that arrived before it runs
+        if (drainScheduled.compareAndSet(false, true)) {
+            executor.execute(this::drainRemoteOperations);
+        }
+    }
+
+    private void drainRemoteOperations() {
+        drainScheduled.set(false);
+
+        // Operations arriving before the snapshot wait for it
+        if (!joined) {
+            return;
+        }
+
+        List<CRDTOperation> batch = new ArrayList<>();
+        CRDTOperation op;
+        while ((op = incomingOperations.poll()) != null) {
+            batch.add(op);
+            if (op.site == siteId) {
+                confirm(op);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            System.out.println("HANDLING REMOTE OPERATIONS " + batch.size());
+            publish(crdtManager.applyOperations(batch));
+        }
+    }
+
+    private void resync(CRDTSnapshot snapshot) {
+        System.out.println("RESYNCING AT SEQ " + snapshot.seq);
+        String before = crdtManager.buildText();
+        crdtManager.resync(snapshot, new ArrayList<>(unconfirmed));
+        publish(Collections.singletonList(new TextChange(0, before.length(), crdtManager.buildText())));
+        drainRemoteOperations();
+    }
+
+    private void executeWhenJoined(Runnable task) {
+        executor.execute(() -> {
+            if (joined) {
+                task.run();
+            } else {
+                waitingForSnapshot.add(task);
+            }
+        });
+    }
+
+    private void integrateLocalEdit(ChangeChannel.Message message) {
+        // Rebase the edit past changes the editor had not rendered yet
+        // Selections and pastes go out as range operations rather than one per character
+        for (TextChange change : workerChannel.receive(message)) {
+            for (CRDTOperation deleteOp : crdtManager.createDeleteOperations(change.start, change.end)) {
+                send(deleteOp);
+                operationsManager.recordOperation(deleteOp);
+            }
+
+            if (!change.text.isEmpty()) {
+                for (CRDTOperation insertOp : crdtManager.createInsertOperations(change.text, change.start)) {
+                    send(insertOp);
+                    operationsManager.recordOperation(insertOp);
+                }
+            }
+        }
+    }
+
+    private void applyLocalOperation(CRDTOperation op) {
+        if (op == null) {
+            return;
+        }
+
+        List<TextChange> changes = crdtManager.applyOperation(op);
+        send(op);
+        publish(changes);
+    }
+
+    private void send(CRDTOperation op) {
+        unconfirmed.addLast(op);
+        networkManager.sendOperation(op);
+    }
+
+    /**
+     * Forgets a sent operation once the server echoed it, along with any
+     * older ones whose echoes were dropped in a resync
+     */
+    private void confirm(CRDTOperation echo) {
+        boolean sent = unconfirmed.stream().anyMatch(op -> op.id == echo.id && op.type == echo.type);
+        if (!sent) {
+            return;
+        }
+
+        CRDTOperation op;
+        do {
+            op = unconfirmed.pollFirst();
+        } while (op.id != echo.id || op.type != echo.type);
+    }
+
+    private void publish(List<TextChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        ChangeChannel.Message message = workerChannel.send(changes);
+        Platform.runLater(() -> {
+            List<TextChange> rebased = editorChannel.receive(message);
+            if (onChanges != null && !rebased.isEmpty()) {
+                onChanges.accept(rebased);
+            }
+        });
+    }
+
+    /**
+     * Called on the FX thread when the document is left. Work already queued
+     * still runs; nothing submitted afterwards does.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void sendAcknowledgement() {
+        if (!networkManager.isConnected()) {
+            // Still connecting, or connecting again
+            return;
+        }
+
+        long seq = crdtManager.getLastSeq();
+        if (seq > lastAckedSeq) {
+            networkManager.sendAcknowledgement(seq);
+            lastAckedSeq = seq;
+        }
+    }
+}
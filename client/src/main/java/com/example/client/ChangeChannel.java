@@ -0,0 +1,175 @@
+package com.example.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.example.crdt.TextChange;
+
+/**
+ * One end of the link between the editor on the FX thread and the CRDT on
+ * the worker thread.
+ *
+ * Both ends change their copy of the text without waiting for the other, so a
+ * message may arrive while changes sent the other way are still in flight.
+ * Each message says how many of the receiver's messages the sender had seen;
+ * the receiver transforms it past the rest of its own unseen changes (and
+ * those past it) before applying it, so both copies end up the same.
+ * Changes are handled as plain inserts and deletes. Ties between inserts at
+ * the same position go to the worker's side.
+ *
+ * Each end must only be used from its own thread.
+ */
+class ChangeChannel {
+    private final boolean incomingFirst;
+    private final Deque<Outgoing> outgoing = new ArrayDeque<>();
+    private int sent = 0;
+    private int received = 0;
+
+    ChangeChannel(boolean incomingFirst) {
+        this.incomingFirst = incomingFirst;
+    }
+
+    /**
+     * Records changes already applied on this end and wraps them for the other
+     */
+    Message send(List<TextChange> changes) {
+        List<TextChange> primitives = toPrimitives(changes);
+        outgoing.addLast(new Outgoing(sent++, primitives));
+        return new Message(new ArrayList<>(primitives), received);
+    }
+
+    /**
+     * Transforms a message from the other end so it applies to this end's text
+     *
+     * @return Inserts and deletes to apply in order
+     */
+    List<TextChange> receive(Message message) {
+        received++;
+
+        // Changes the other end had already seen need no transformation
+        while (!outgoing.isEmpty() && outgoing.peekFirst().index < message.seen) {
+            outgoing.pollFirst();
+        }
+
+        List<TextChange> result = new ArrayList<>(message.changes.size());
+        for (TextChange change : message.changes) {
+            TextChange incoming = change;
+            for (Outgoing pending : outgoing) {
+                for (int i = 0; i < pending.changes.size(); i++) {
+                    TextChange own = pending.changes.get(i);
+                    pending.changes.set(i, transform(own, incoming, !incomingFirst));
+                    incoming = transform(incoming, own, incomingFirst);
+                }
+            }
+            if (incoming != null) {
+                result.add(incoming);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps a caret offset past a change from the other end
+     */
+    static int transformCaret(int caret, TextChange change) {
+        if (change.start == change.end) {
+            return change.start <= caret ? caret + change.text.length() : caret;
+        }
+        return mapThroughDelete(caret, change);
+    }
+
+    private static List<TextChange> toPrimitives(List<TextChange> changes) {
+        List<TextChange> primitives = new ArrayList<>(changes.size());
+        for (TextChange change : changes) {
+            if (change.end > change.start) {
+                primitives.add(new TextChange(change.start, change.end, ""));
+            }
+            if (!change.text.isEmpty()) {
+                primitives.add(new TextChange(change.start, change.start, change.text));
+            }
+        }
+        return primitives;
+    }
+
+    /**
+     * Rewrites {@code a} to apply after {@code b}, where both were made
+     * against the same text. Null stands for a change that no longer does
+     * anything.
+     */
+    private static TextChange transform(TextChange a, TextChange b, boolean aFirst) {
+        if (a == null || b == null) {
+            return a;
+        }
+
+        int inserted = b.text.length();
+        int deleted = b.end - b.start;
+
+        if (a.start == a.end) {
+            if (b.start == b.end) {
+                if (a.start < b.start || (a.start == b.start && aFirst)) {
+                    return a;
+                }
+                return new TextChange(a.start + inserted, a.start + inserted, a.text);
+            }
+
+            if (a.start <= b.start) {
+                return a;
+            }
+            if (a.start >= b.end) {
+                return new TextChange(a.start - deleted, a.start - deleted, a.text);
+            }
+            // Typed into text the other end deleted; the delete takes it too
+            return null;
+        }
+
+        if (b.start == b.end) {
+            if (b.start <= a.start) {
+                return new TextChange(a.start + inserted, a.end + inserted, "");
+            }
+            if (b.start >= a.end) {
+                return a;
+            }
+            return new TextChange(a.start, a.end + inserted, "");
+        }
+
+        int start = mapThroughDelete(a.start, b);
+        int end = mapThroughDelete(a.end, b);
+        return start == end ? null : new TextChange(start, end, "");
+    }
+
+    private static int mapThroughDelete(int pos, TextChange delete) {
+        if (pos <= delete.start) {
+            return pos;
+        }
+        if (pos >= delete.end) {
+            return pos - (delete.end - delete.start);
+        }
+        return delete.start;
+    }
+
+    /**
+     * Changes sent from one end, with how many of the receiver's messages the
+     * sender had integrated at the time
+     */
+    static class Message {
+        final List<TextChange> changes;
+        final int seen;
+
+        Message(List<TextChange> changes, int seen) {
+            this.changes = changes;
+            this.seen = seen;
+        }
+    }
+
+    private static class Outgoing {
+        final int index;
+        final List<TextChange> changes;
+
+        Outgoing(int index, List<TextChange> changes) {
+            this.index = index;
+            this.changes = changes;
+        }
+    }
+}
@@ -7,14 +7,13 @@ import com.example.network.NetworkManager;
 import com.example.network.NetworkManager.DocumentInfo;
 import com.example.ui.ActiveUsersPanel;
 import com.example.ui.ToolbarComponent;
-import com.example.crdt.CRDTManager;
-import com.example.crdt.CRDTOperation;
 
 import javafx.application.Platform;
 import javafx.scene.layout.BorderPane;
 
 public class DocumentPage extends BorderPane {
     private final String userId;
+    private final int siteId;
     private final NetworkManager networkManager;
     private final DocumentInfo docInfo;
     private File currentFile;
@@ -22,7 +21,7 @@ public class DocumentPage extends BorderPane {
     private final EditorComponent editorComponent;
     private final ToolbarComponent toolbarComponent;
     private final ActiveUsersPanel activeUsersPanel;
-    private final CRDTManager crdtManager;
+    private final CRDTWorker crdtWorker;
     private final OperationsManager operationsManager;
     private final DocumentLoader documentLoader;
 
@@ -32,18 +31,18 @@ public class DocumentPage extends BorderPane {
         this.docInfo = documentInfo;
         this.currentFile = currentFile;
         this.userId = networkManager.getUserId();
+        this.siteId = networkManager.getSiteId();
 
         System.out.printf("\n\nYour userID is: %s\n\n\n", userId);
 
         // Initialize components
-        this.crdtManager = new CRDTManager(userId, documentInfo.getId());
         this.operationsManager = new OperationsManager();
+        this.crdtWorker = new CRDTWorker(siteId, networkManager, operationsManager);
         this.documentLoader = new DocumentLoader(sceneManager);
 
         this.activeUsersPanel = new ActiveUsersPanel(userId);
 
         this.editorComponent = new EditorComponent(
-                crdtManager,
                 operationsManager,
                 networkManager,
                 documentInfo.getId(),
@@ -55,7 +54,8 @@ public class DocumentPage extends BorderPane {
                 documentInfo,
                 this::saveDocument,
                 this::performUndo,
-                this::performRedo);
+                this::performRedo,
+                crdtWorker::close);
 
         // Connect to the network
         setupEventHandlers();
@@ -77,13 +77,16 @@ public class DocumentPage extends BorderPane {
 
     private void setupEventHandlers() {
         networkManager.setOnUserStatusChanged(this::handleUserStatusUpdate);
-        networkManager.setOnOperationReceived(this::handleRemoteOperation);
+        networkManager.setOnSnapshotReceived(crdtWorker::receiveSnapshot);
+        networkManager.setOnOperationReceived(crdtWorker::receiveRemoteOperation);
         networkManager.setOnConnectionError(this::handleConnectionError);
 
         editorComponent.setOnTextChange((position, inserted, removed) -> {
-            handleTextChanges(position, inserted, removed);
+            crdtWorker.submitLocalEdit(position, inserted, removed);
         });
 
+        crdtWorker.setOnChanges(editorComponent::applyChanges);
+
         editorComponent.setOnLineChange((lineNumber) -> {
             networkManager.sendLinePosition(docInfo.getId(), lineNumber);
         });
@@ -93,40 +96,6 @@ public class DocumentPage extends BorderPane {
         Platform.runLater(() -> activeUsersPanel.updateActiveUsers(statusUpdate));
     }
 
-    private void handleTextChanges(int position, String inserted, String removed) {
-        // Handle deletions
-        for (int i = 0; i < removed.length(); i++) {
-            CRDTOperation deleteOp = crdtManager.createDeleteOperation(position, docInfo.getId());
-            if (deleteOp != null) {
-                networkManager.sendOperation(deleteOp);
-                operationsManager.recordOperation(deleteOp);
-            }
-        }
-
-        // Handle insertions
-        for (int i = 0; i < inserted.length(); i++) {
-            char c = inserted.charAt(i);
-            CRDTOperation insertOp = crdtManager.createInsertOperation(c, position + i, docInfo.getId());
-            networkManager.sendOperation(insertOp);
-            operationsManager.recordOperation(insertOp);
-        }
-    }
-
-    private void handleRemoteOperation(CRDTOperation op) {
-        Platform.runLater(() -> {
-            System.out.println("HANDLING REMOTE OPERATION " + op);
-            if (op.forID != null && op.forID.equals(userId)) {
-                crdtManager.applyOperation(op);
-                editorComponent.updateContent(crdtManager.buildText());
-                return;
-            }
-            if (op.forID == null && !op.userID.equals(userId)) {
-                crdtManager.applyOperation(op);
-                editorComponent.updateContent(crdtManager.buildText());
-            }
-        });
-    }
-
     private void loadContent() {
         if (currentFile == null) {
             return;
@@ -135,16 +104,7 @@ public class DocumentPage extends BorderPane {
         String content = documentLoader.loadFileContent(currentFile);
         System.out.println("Loaded content: " + content);
 
-        Platform.runLater(() -> {
-            for (int i = 0; i < content.length(); i++) {
-                char c = content.charAt(i);
-                CRDTOperation op = crdtManager.createInsertOperation(c, i, docInfo.getId());
-                networkManager.sendOperation(op);
-            }
-
-            editorComponent.updateContent(crdtManager.buildText());
-            operationsManager.clearHistory();
-        });
+        crdtWorker.importText(content);
     }
 
     private void saveDocument() {
@@ -158,21 +118,11 @@ public class DocumentPage extends BorderPane {
     }
 
     private void performUndo() {
-        CRDTOperation undoOp = operationsManager.undo();
-        if (undoOp != null) {
-            crdtManager.applyOperation(undoOp);
-            networkManager.sendOperation(undoOp);
-            editorComponent.updateContent(crdtManager.buildText());
-        }
+        crdtWorker.undo();
     }
 
     private void performRedo() {
-        CRDTOperation redoOp = operationsManager.redo();
-        if (redoOp != null) {
-            crdtManager.applyOperation(redoOp);
-            networkManager.sendOperation(redoOp);
-            editorComponent.updateContent(crdtManager.buildText());
-        }
+        crdtWorker.redo();
     }
 
     private void handleConnectionError(String errorMessage) {
@@ -1,16 +1,18 @@
 package com.example.client;
 
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.IntFunction;
 
 import org.fxmisc.flowless.VirtualizedScrollPane;
 import org.fxmisc.richtext.CodeArea;
 import org.fxmisc.richtext.LineNumberFactory;
+import org.fxmisc.richtext.MultiChangeBuilder;
 import org.fxmisc.richtext.model.PlainTextChange;
 import org.fxmisc.richtext.model.TwoDimensional.Position;
 import org.reactfx.Subscription;
 
-import com.example.crdt.CRDTManager;
+import com.example.crdt.TextChange;
 
 import javafx.beans.value.ChangeListener;
 import javafx.scene.Node;
@@ -31,12 +33,8 @@ public class EditorComponent extends BorderPane {
     private Subscription textChangeSubscription;
     private ChangeListener<Number> caretPositionListener;
 
-    private final CRDTManager crdtManager;
-
-    public EditorComponent(CRDTManager crdtManager, OperationsManager operationsManager,
+    public EditorComponent(OperationsManager operationsManager,
             Object networkManager, String documentId, boolean readOnly) {
-        this.crdtManager = crdtManager;
-
         this.codeArea = new CodeArea();
         codeArea.setDisable(readOnly);
 
@@ -75,11 +73,14 @@ public class EditorComponent extends BorderPane {
 
     private void setupCaretPositionListener() {
         caretPositionListener = (obs, oldPos, newPos) -> {
+            // Caret moves caused by rendering remote changes are not the user's
+            if (isUndoRedoOperation) {
+                return;
+            }
+
             Position pos = codeArea.offsetToPosition(newPos.intValue(), null);
             int lineNumber = pos.getMajor();
 
-            crdtManager.updateCurrentNodeTracking(newPos.intValue());
-
             if (lineNumber != currentLinePosition) {
                 System.out.println("Line position change: " + lineNumber);
                 currentLinePosition = lineNumber;
@@ -127,34 +128,33 @@ public class EditorComponent extends BorderPane {
         }
     }
 
-    public void updateContent(String newText) {
-        if (textChangeSubscription != null) {
-            textChangeSubscription.unsubscribe();
+    /**
+     * Renders changes made elsewhere. They are applied in order in a single
+     * document update, so they are drawn once, and the caret is carried past
+     * them.
+     */
+    public void applyChanges(List<TextChange> changes) {
+        if (changes.isEmpty()) {
+            return;
         }
-        codeArea.caretPositionProperty().removeListener(caretPositionListener);
 
         try {
             isUndoRedoOperation = true;
 
-            // Calculate new caret position
-            int newPosition = crdtManager.getCaretPosition();
-            if (newPosition < 0) {
-                boolean wasAtEnd = caretOffset == codeArea.getLength();
-                newPosition = wasAtEnd ? newText.length() : Math.min(caretOffset, codeArea.getLength());
+            int caret = codeArea.getCaretPosition();
+            MultiChangeBuilder<?, ?, ?> multiChange = codeArea.createMultiChange(changes.size());
+            for (TextChange change : changes) {
+                multiChange.replaceText(change.start, change.end, change.text);
+                caret = ChangeChannel.transformCaret(caret, change);
             }
-
-            // Update content
-            codeArea.replaceText(newText);
+            multiChange.commit();
 
             // Set caret position
-            int safePosition = Math.min(newPosition, codeArea.getLength());
+            int safePosition = Math.min(caret, codeArea.getLength());
             codeArea.moveTo(safePosition);
             caretOffset = safePosition;
-
         } finally {
             isUndoRedoOperation = false;
-            listenToTextChanges();
-            setupCaretPositionListener();
         }
     }
 
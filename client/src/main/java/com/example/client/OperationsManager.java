@@ -68,23 +68,32 @@ public class OperationsManager {
         if (op.type == OperationType.INSERT) {
             // Invert INSERT to DELETE
             return new CRDTOperation(
-                    op.userID,
-                    op.documentID,
+                    op.site,
                     OperationType.DELETE,
                     op.character,
                     op.position,
                     op.id,
-                    op.parentNodeId);
+                    op.parentId);
         } else if (op.type == OperationType.DELETE) {
             // Invert DELETE to INSERT
             return new CRDTOperation(
-                    op.userID,
-                    op.documentID,
+                    op.site,
                     OperationType.INSERT,
                     op.character,
                     op.position,
                     op.id,
-                    op.parentNodeId);
+                    op.parentId);
+        } else if (op.type == OperationType.INSERT_RUN || op.type == OperationType.DELETE_RANGE) {
+            // Ranges invert into each other over the same ids
+            CRDTOperation inverse = new CRDTOperation(
+                    op.site,
+                    op.type == OperationType.INSERT_RUN ? OperationType.DELETE_RANGE : OperationType.INSERT_RUN,
+                    op.character,
+                    op.position,
+                    op.id,
+                    op.parentId);
+            inverse.text = op.text;
+            return inverse;
         }
 
         return null;
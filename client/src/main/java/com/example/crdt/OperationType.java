@@ -1,6 +0,0 @@
-package com.example.crdt;
-
-public enum OperationType {
-    INSERT,
-    DELETE
-}
@@ -0,0 +1,80 @@
+package com.example.network;
+
+import com.example.crdt.CRDTManager;
+import com.example.messaging.BodyCompression;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Adds body compression around the client's message converters. A body the
+ * server deflated arrives as application/octet-stream with its real content
+ * type in the deflated-content-type header, and is inflated before
+ * conversion. When compressing, outgoing bodies of at least THRESHOLD bytes
+ * are deflated the same way; keystrokes stay below it and are sent as is.
+ * Deflated bodies need binary frames, so SockJS sessions never compress.
+ */
+public class CompressingMessageConverter implements MessageConverter {
+    private static final int THRESHOLD = 1024;
+
+    private final MessageConverter delegate;
+    private final boolean compress;
+
+    public CompressingMessageConverter(MessageConverter delegate, boolean compress) {
+        this.delegate = delegate;
+        this.compress = compress;
+    }
+
+    @Override
+    public Object fromMessage(Message<?> message, Class<?> targetClass) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        String contentType = accessor.getFirstNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE);
+        if (contentType == null || !(message.getPayload() instanceof byte[])) {
+            return delegate.fromMessage(message, targetClass);
+        }
+
+        accessor.removeNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE);
+        accessor.setContentType(MimeType.valueOf(contentType));
+        byte[] body = inflate((byte[]) message.getPayload());
+        return delegate.fromMessage(MessageBuilder.createMessage(body, accessor.getMessageHeaders()), targetClass);
+    }
+
+    @Override
+    public Message<?> toMessage(Object payload, MessageHeaders headers) {
+        Message<?> message = delegate.toMessage(payload, headers);
+        if (!compress || message == null || !(message.getPayload() instanceof byte[])) {
+            return message;
+        }
+
+        // The STOMP session reads the content type back from its own headers
+        byte[] body = (byte[]) message.getPayload();
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (body.length < THRESHOLD || accessor == null || !accessor.isMutable() || accessor.getContentType() == null) {
+            return message;
+        }
+
+        byte[] deflated = BodyCompression.deflate(body);
+        if (deflated.length >= body.length) {
+            return message;
+        }
+
+        accessor.setNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE, accessor.getContentType().toString());
+        accessor.setContentType(MimeTypeUtils.APPLICATION_OCTET_STREAM);
+        return MessageBuilder.createMessage(deflated, accessor.getMessageHeaders());
+    }
+
+    private static byte[] inflate(byte[] body) {
+        try {
+            return BodyCompression.inflate(body, CRDTManager.MAX_MESSAGE_BYTES);
+        } catch (IllegalArgumentException e) {
+            throw new MessageConversionException(e.getMessage());
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package com.example.network;
 
+import com.example.crdt.CRDTManager;
 import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
+import com.example.crdt.OperationBatch;
+import com.example.messaging.BinaryOperationMessageConverter;
+import com.example.messaging.BodyCompression;
+import org.springframework.messaging.converter.CompositeMessageConverter;
 import org.springframework.messaging.converter.MappingJackson2MessageConverter;
 import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaders;
 import org.springframework.messaging.simp.stomp.StompSession;
 import org.springframework.messaging.simp.stomp.StompSessionHandler;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.WebSocketHttpHeaders;
 import org.springframework.web.socket.client.standard.StandardWebSocketClient;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
 import org.springframework.web.socket.sockjs.client.SockJsClient;
@@ -15,31 +22,64 @@ import org.springframework.web.socket.sockjs.client.WebSocketTransport;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 public class NetworkManager {
     private static final String SERVER_URL = "http://localhost:8080";
     private static final String WEBSOCKET_URL = "http://localhost:8080/collaborative-editor";
+    private static final String RAW_WEBSOCKET_URL = "ws://localhost:8080/collaborative-editor/ws";
+
+    // STOMP goes straight over a WebSocket, falling back to SockJS when that
+    // cannot connect; -Deditor.transport=sockjs skips the plain attempt
+    private static final boolean PREFER_SOCKJS = "sockjs".equalsIgnoreCase(System.getProperty("editor.transport"));
 
     private static final String USER_API = SERVER_URL + "/api/users";
     private static final String DOCUMENT_API = SERVER_URL + "/api/documents";
 
+    // Operations created within this window of each other share a frame
+    private static final long COALESCE_WINDOW_MS = 5;
+    // Largest STOMP frame accepted from the server, the same as the server's
+    // own limit; the default of 64 KiB is too small for a full INSERT_RUN
+    private static final int MAX_INBOUND_MESSAGE_BYTES = CRDTManager.MAX_MESSAGE_BYTES;
+    // Characters per frame, so a batch stays within the server's message size limit
+    private static final int MAX_FRAME_CHARACTERS = CRDTManager.MAX_RUN_LENGTH;
+    // Queued messages before sendOperation blocks, which holds back the CRDT worker
+    private static final int OUTBOUND_CAPACITY = 4096;
+    private static final long SENDER_STOP_TIMEOUT_MS = 2000;
+
+    // Marks the end of the outbound queue when disconnecting
+    private static final Object END_OF_QUEUE = new Object();
+
     private WebSocketStompClient stompClient;
     private StompSession stompSession;
 
     private final RestTemplate restTemplate = new RestTemplate();
 
     private String userId;
+    private int siteId;
     private String documentId;
     private boolean isEditor;
     private String accessCode;
     private int currentLinePosition = 0;
 
+    // Whether operations travel in the binary codec rather than as JSON
+    private boolean binaryFrames = false;
+
+    // Operations and acknowledgements waiting for the sender thread, in the
+    // order they were created
+    private final BlockingQueue<Object> outbound = new LinkedBlockingQueue<>(OUTBOUND_CAPACITY);
+    private Thread sender;
+
     private Consumer<CRDTOperation> onOperationReceived;
+    private Consumer<CRDTSnapshot> onSnapshotReceived;
     private Consumer<Map<String, Object>> onUserStatusChanged;
     private Consumer<String> onConnectionError;
 
@@ -48,6 +88,7 @@ public class NetworkManager {
             Map<?, ?> response = restTemplate.postForObject(USER_API, null, Map.class);
             if (response != null && response.containsKey("userId")) {
                 this.userId = (String) response.get("userId");
+                this.siteId = ((Number) response.get("siteId")).intValue();
                 return this.userId;
             } else {
                 throw new RuntimeException("Failed to get user ID from server");
@@ -114,19 +155,21 @@ public class NetworkManager {
 
     public void connectWebSocket() {
         try {
-            List<Transport> transports = new ArrayList<>();
-            transports.add(new WebSocketTransport(new StandardWebSocketClient()));
-            SockJsClient sockJsClient = new SockJsClient(transports);
-
-            stompClient = new WebSocketStompClient(sockJsClient);
-            stompClient.setMessageConverter(new MappingJackson2MessageConverter());
-
-            DocumentStompSessionHandler sessionHandler = new DocumentStompSessionHandler();
+            stompSession = null;
+            if (!PREFER_SOCKJS) {
+                try {
+                    stompSession = connect(false);
+                    System.out.println("Successfully connected to WebSocket at: " + RAW_WEBSOCKET_URL);
+                } catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Plain WebSocket failed, falling back to SockJS: " + e.getMessage());
+                }
+            }
 
             try {
-                stompSession = stompClient.connect(WEBSOCKET_URL, sessionHandler).get();
-                System.out.println("Successfully connected to WebSocket at: " + WEBSOCKET_URL);
-
+                if (stompSession == null) {
+                    stompSession = connect(true);
+                    System.out.println("Successfully connected to WebSocket at: " + WEBSOCKET_URL);
+                }
             } catch (InterruptedException | ExecutionException e) {
                 String errorMessage = "Failed to connect to WebSocket: " + e.getMessage();
                 System.err.println(errorMessage);
@@ -141,7 +184,93 @@ public class NetworkManager {
                 throw new RuntimeException(errorMessage, e);
             }
 
-            stompSession.subscribe("/topic/document/" + documentId, new StompSessionHandler() {
+            // The server answers the join with a snapshot sent to this session
+            // only, in as many parts as it takes to keep each frame small
+            stompSession.subscribe("/user/queue/snapshot", new StompSessionHandler() {
+                private CRDTSnapshot assembled;
+
+                @Override
+                public void handleException(StompSession session, StompCommand command, StompHeaders headers,
+                        byte[] payload, Throwable exception) {
+                    if (onConnectionError != null) {
+                        onConnectionError.accept("WebSocket error: " + exception.getMessage());
+                    }
+                }
+
+                @Override
+                public void handleTransportError(StompSession session, Throwable exception) {
+                    if (onConnectionError != null) {
+                        onConnectionError.accept("Transport error: " + exception.getMessage());
+                    }
+                }
+
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return CRDTSnapshot.class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    if (!(payload instanceof CRDTSnapshot)) {
+                        return;
+                    }
+
+                    CRDTSnapshot part = (CRDTSnapshot) payload;
+                    if (assembled == null) {
+                        assembled = part;
+                    } else {
+                        assembled.append(part);
+                    }
+                    if (!assembled.more) {
+                        if (onSnapshotReceived != null) {
+                            onSnapshotReceived.accept(assembled);
+                        }
+                        assembled = null;
+                    }
+                }
+
+                @Override
+                public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+                }
+            });
+
+            // Requests the server rejects are reported to this session only
+            stompSession.subscribe("/user/queue/errors", new StompSessionHandler() {
+                @Override
+                public void handleException(StompSession session, StompCommand command, StompHeaders headers,
+                        byte[] payload, Throwable exception) {
+                    if (onConnectionError != null) {
+                        onConnectionError.accept("WebSocket error: " + exception.getMessage());
+                    }
+                }
+
+                @Override
+                public void handleTransportError(StompSession session, Throwable exception) {
+                    if (onConnectionError != null) {
+                        onConnectionError.accept("Transport error: " + exception.getMessage());
+                    }
+                }
+
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    if (payload instanceof Map && onConnectionError != null) {
+                        onConnectionError.accept("Server error: " + ((Map<?, ?>) payload).get("error"));
+                    }
+                }
+
+                @Override
+                public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+                }
+            });
+
+            // The server publishes every operation both as JSON and in the binary codec
+            String operationsTopic = "/topic/document/" + documentId + (binaryFrames ? "/binary" : "");
+            stompSession.subscribe(operationsTopic, new StompSessionHandler() {
                 @Override
                 public void handleException(StompSession session, StompCommand command, StompHeaders headers,
                         byte[] payload, Throwable exception) {
@@ -217,6 +346,10 @@ public class NetworkManager {
 
             stompSession.send("/app/join", joinRequest);
 
+            sender = new Thread(this::runSender, "network-sender");
+            sender.setDaemon(true);
+            sender.start();
+
         } catch (Exception e) {
             String errorMessage = "Failed to connect to WebSocket: " + e.getMessage();
             System.err.println(errorMessage);
@@ -229,7 +362,39 @@ public class NetworkManager {
     }
 
     /**
-     * Send an operation to the server to be broadcast to other clients.
+     * Opens a STOMP session over a plain WebSocket or over SockJS
+     */
+    private StompSession connect(boolean sockJs) throws InterruptedException, ExecutionException {
+        if (sockJs) {
+            List<Transport> transports = new ArrayList<>();
+            transports.add(new WebSocketTransport(new StandardWebSocketClient()));
+            stompClient = new WebSocketStompClient(new SockJsClient(transports));
+        } else {
+            stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        }
+        stompClient.setInboundMessageSizeLimit(MAX_INBOUND_MESSAGE_BYTES);
+        // SockJS only carries text frames, so operations stay JSON over it
+        // and large bodies are not compressed
+        binaryFrames = !sockJs;
+
+        stompClient.setMessageConverter(new CompressingMessageConverter(new CompositeMessageConverter(Arrays.asList(
+                new BinaryOperationMessageConverter(), new MappingJackson2MessageConverter())), binaryFrames));
+
+        StompHeaders connectHeaders = new StompHeaders();
+        if (binaryFrames) {
+            connectHeaders.add(BodyCompression.ACCEPT_ENCODING, "deflate");
+        }
+
+        return stompClient.connect(sockJs ? WEBSOCKET_URL : RAW_WEBSOCKET_URL, (WebSocketHttpHeaders) null,
+                connectHeaders, new DocumentStompSessionHandler()).get();
+    }
+
+    // Operations are sent from the sender thread and presence from the FX
+    // thread, so every send on the STOMP session is synchronized
+
+    /**
+     * Queue an operation to be sent to the server and broadcast to other
+     * clients. Blocks while the queue is full, i.e. the connection cannot keep up.
      * 
      * @param operation The CRDT operation to send
      */
@@ -250,15 +415,132 @@ public class NetworkManager {
         }
 
         try {
-            stompSession.send("/app/operations", operation);
+            outbound.put(operation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends queued operations and acknowledgements in order, coalescing
+     * operations that arrive within the window into one frame
+     */
+    private void runSender() {
+        List<CRDTOperation> batch = new ArrayList<>();
+        Object next = null;
+        try {
+            while (true) {
+                Object first = next != null ? next : outbound.take();
+                next = null;
+                if (first == END_OF_QUEUE) {
+                    return;
+                }
+                if (first instanceof Acknowledgement) {
+                    sendAckFrame(((Acknowledgement) first).seq);
+                    continue;
+                }
+
+                CRDTOperation firstOp = (CRDTOperation) first;
+                batch.add(firstOp);
+                int characters = characterCount(firstOp);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COALESCE_WINDOW_MS);
+                while (true) {
+                    Object item = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (item == null) {
+                        break;
+                    }
+                    // An acknowledgement ends the frame, so it goes out after
+                    // every operation created before it
+                    if (!(item instanceof CRDTOperation)
+                            || characters + characterCount((CRDTOperation) item) > MAX_FRAME_CHARACTERS) {
+                        next = item;
+                        break;
+                    }
+                    batch.add((CRDTOperation) item);
+                    characters += characterCount((CRDTOperation) item);
+                }
+
+                sendFrame(batch);
+                batch = new ArrayList<>();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int characterCount(CRDTOperation op) {
+        return op.text != null ? op.text.length() : 1;
+    }
+
+    private synchronized void sendFrame(List<CRDTOperation> batch) {
+        if (stompSession == null || !stompSession.isConnected()) {
+            if (onConnectionError != null) {
+                onConnectionError.accept("Not connected to WebSocket");
+            }
+            return;
+        }
+
+        try {
+            StompHeaders headers = new StompHeaders();
+            if (binaryFrames) {
+                headers.setContentType(BinaryOperationMessageConverter.CONTENT_TYPE);
+            }
+
+            if (batch.size() == 1) {
+                headers.setDestination("/app/operations/" + documentId);
+                stompSession.send(headers, batch.get(0));
+            } else {
+                headers.setDestination("/app/operations/" + documentId + "/batch");
+                stompSession.send(headers, new OperationBatch(batch));
+            }
         } catch (Exception e) {
             if (onConnectionError != null) {
-                onConnectionError.accept("Failed to send operation: " + e.getMessage());
+                onConnectionError.accept("Failed to send operations: " + e.getMessage());
             }
         }
     }
 
-    public void sendLinePosition(String documentId, int linePosition) {
+    /**
+     * Tells the server which operations this replica has integrated, so it can
+     * work out when tombstones are safe to collect. The acknowledgement is
+     * queued behind the operations sent so far: the server must not learn
+     * that this replica has seen seq before it has every operation this
+     * replica created up to then, or it could declare stable a tombstone one
+     * of them is inserted after.
+     * 
+     * @param seq The highest operation sequence number integrated so far
+     */
+    public void sendAcknowledgement(long seq) {
+        if (stompSession == null || !stompSession.isConnected()) {
+            return;
+        }
+
+        try {
+            outbound.put(new Acknowledgement(seq));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void sendAckFrame(long seq) {
+        if (stompSession == null || !stompSession.isConnected()) {
+            return;
+        }
+
+        try {
+            Map<String, Object> ack = new HashMap<>();
+            ack.put("userId", userId);
+            ack.put("seq", seq);
+
+            stompSession.send("/app/ack/" + documentId, ack);
+        } catch (Exception e) {
+            if (onConnectionError != null) {
+                onConnectionError.accept("Failed to send acknowledgement: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void sendLinePosition(String documentId, int linePosition) {
         if (stompSession == null || !stompSession.isConnected()) {
             if (onConnectionError != null) {
                 onConnectionError.accept("Not connected to WebSocket");
@@ -284,18 +566,31 @@ public class NetworkManager {
     }
 
     public void disconnect() {
-        if (stompSession != null && stompSession.isConnected()) {
+        // Operations still queued go out before the leave message
+        if (sender != null) {
             try {
-                Map<String, String> leaveRequest = new HashMap<>();
-                leaveRequest.put("documentId", documentId);
-                leaveRequest.put("userId", userId);
-
-                stompSession.send("/app/leave", leaveRequest);
-                stompSession.disconnect();
-                stompSession = null;
-                System.out.println("Successfully disconnected from WebSocket");
-            } catch (Exception e) {
-                System.err.println("Error during disconnect: " + e.getMessage());
+                outbound.put(END_OF_QUEUE);
+                sender.join(SENDER_STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sender = null;
+        }
+
+        synchronized (this) {
+            if (stompSession != null && stompSession.isConnected()) {
+                try {
+                    Map<String, String> leaveRequest = new HashMap<>();
+                    leaveRequest.put("documentId", documentId);
+                    leaveRequest.put("userId", userId);
+
+                    stompSession.send("/app/leave", leaveRequest);
+                    stompSession.disconnect();
+                    stompSession = null;
+                    System.out.println("Successfully disconnected from WebSocket");
+                } catch (Exception e) {
+                    System.err.println("Error during disconnect: " + e.getMessage());
+                }
             }
         }
     }
@@ -304,6 +599,10 @@ public class NetworkManager {
         this.onOperationReceived = callback;
     }
 
+    public void setOnSnapshotReceived(Consumer<CRDTSnapshot> callback) {
+        this.onSnapshotReceived = callback;
+    }
+
     public void setOnUserStatusChanged(Consumer<Map<String, Object>> callback) {
         this.onUserStatusChanged = callback;
     }
@@ -316,13 +615,26 @@ public class NetworkManager {
         return userId;
     }
 
+    public boolean isConnected() {
+        return stompSession != null && stompSession.isConnected();
+    }
+
+    public int getSiteId() {
+        return siteId;
+    }
+
     public boolean isEditor() {
         return isEditor;
     }
 
     private class DocumentStompSessionHandler implements StompSessionHandler {
+        // Failures to connect are reported by connectWebSocket, which may
+        // still fall back to SockJS
+        private volatile boolean connected = false;
+
         @Override
         public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+            connected = true;
             System.out.println("Connected to WebSocket session: " + session.getSessionId());
         }
 
@@ -348,7 +660,7 @@ public class NetworkManager {
                 System.err.println("Root cause: " + exception.getCause().getMessage());
             }
 
-            if (onConnectionError != null) {
+            if (connected && onConnectionError != null) {
                 onConnectionError.accept(errorMessage);
             }
         }
@@ -363,6 +675,17 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * An acknowledgement waiting in the outbound queue
+     */
+    private static class Acknowledgement {
+        final long seq;
+
+        Acknowledgement(long seq) {
+            this.seq = seq;
+        }
+    }
+
     public static class DocumentInfo {
         private String id;
         private String editorCode;
@@ -1,5 +1,6 @@
 package com.example.ui;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -17,6 +18,9 @@ public class ActiveUsersPanel extends VBox {
 
     private final String currentUserId;
 
+    // Last known line of every user, kept up to date from position changes
+    private final Map<String, Integer> positions = new LinkedHashMap<>();
+
     public ActiveUsersPanel(String currentUserId) {
         this.currentUserId = currentUserId;
 
@@ -34,19 +38,32 @@ public class ActiveUsersPanel extends VBox {
     }
 
     /**
-     * Updates the panel with active user information
+     * Updates the panel with active user information. Called on the FX
+     * thread, which is the only one to touch the panel.
      */
+    @SuppressWarnings("unchecked")
     public void updateActiveUsers(Map<String, Object> userStatusUpdate) {
         String type = (String) userStatusUpdate.get("type");
 
         if ("USER_POSITIONS".equals(type)) {
-            @SuppressWarnings("unchecked")
-            Map<String, Integer> userPositions = (Map<String, Integer>) userStatusUpdate.get("positions");
-            displayActiveUsers(userPositions);
+            // Every user's position, sent when someone joins
+            positions.clear();
+            positions.putAll((Map<String, Integer>) userStatusUpdate.get("positions"));
+        } else if ("USER_POSITIONS_CHANGED".equals(type)) {
+            // Only the users who moved since the server's last presence tick.
+            // The tick runs apart from joins and leaves, so it can report a
+            // user who has left since; users not shown are left out rather
+            // than brought back.
+            ((Map<String, Integer>) userStatusUpdate.get("positions")).forEach(positions::replace);
         } else if ("USER_LEFT".equals(type)) {
             String userId = (String) userStatusUpdate.get("userId");
             System.out.println("User left: " + userId);
+            positions.remove(userId);
+        } else {
+            return;
         }
+
+        displayActiveUsers(new LinkedHashMap<>(positions));
     }
 
     /**
@@ -25,15 +25,17 @@ public class ToolbarComponent extends HBox {
     private final Runnable onSave;
     private final Runnable onUndo;
     private final Runnable onRedo;
+    private final Runnable onLeave;
 
     public ToolbarComponent(SceneManager sceneManager, NetworkManager networkManager,
-            DocumentInfo docInfo, Runnable onSave, Runnable onUndo, Runnable onRedo) {
+            DocumentInfo docInfo, Runnable onSave, Runnable onUndo, Runnable onRedo, Runnable onLeave) {
         this.sceneManager = sceneManager;
         this.networkManager = networkManager;
         this.docInfo = docInfo;
         this.onSave = onSave;
         this.onUndo = onUndo;
         this.onRedo = onRedo;
+        this.onLeave = onLeave;
 
         setupToolbar();
     }
@@ -73,6 +75,9 @@ public class ToolbarComponent extends HBox {
     private Button createBackButton() {
         Button backButton = new Button("Back to Home");
         backButton.setOnAction(e -> {
+            if (onLeave != null) {
+                onLeave.run();
+            }
             networkManager.disconnect();
             sceneManager.showLandingPage();
         });
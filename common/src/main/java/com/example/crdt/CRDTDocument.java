@@ -0,0 +1,585 @@
+package com.example.crdt;
+
+import java.util.*;
+
+public class CRDTDocument {
+    // The root is a one character run that never becomes visible
+    private final CRDTNode root = new CRDTNode(0, 0, '\0', null);
+    private final NodeMap nodeMap = new NodeMap();
+    private final Map<Long, List<PendingNode>> pendingInserts = new HashMap<>();
+    private boolean resolving = false;
+    private final SequenceIndex index = new SequenceIndex(root);
+    private final int siteId;
+    private int clock = 0;
+
+    // The sequence index doubles as a rope over the visible text
+    private final CharSequence textView = new TextView();
+    private String textCache;
+
+    // Stable clock of the last tombstone collection; older unknown ids were collected
+    private int collectedClock = 0;
+
+    // Newer siblings come first; concurrent siblings are ordered by site
+    private static final Comparator<CRDTNode> NODE_ORDER = Comparator
+            .comparingInt((CRDTNode n) -> n.clock).reversed()
+            .thenComparingInt(n -> n.site);
+
+    public CRDTDocument(int siteId) {
+        this.siteId = siteId;
+        nodeMap.put(root);
+    }
+
+    public long insert(char value, long parentId) {
+        long id = CRDTId.of(siteId, clock + 1);
+        insertWithId(id, value, parentId);
+        return id;
+    }
+
+    public void insertWithId(long id, char c, long parentId) {
+        CRDTNode existing = nodeMap.get(id);
+        if (existing != null) {
+            // Re-inserting a known id (undo of a delete) revives it in place
+            CRDTNode node = isolate(existing, offsetOf(existing, id));
+            if (node.deleted) {
+                node.deleted = false;
+                index.updateWeight(node);
+                textCache = null;
+            }
+            return;
+        }
+        if (CRDTId.clock(id) <= collectedClock) {
+            // Undo of a delete whose tombstone has already been collected
+            return;
+        }
+
+        CRDTNode parent = nodeMap.get(parentId);
+        if (parent == null) {
+            pendingInserts
+                    .computeIfAbsent(parentId, k -> new ArrayList<>())
+                    .add(new PendingNode(id, c, parentId));
+            return;
+        }
+
+        int site = CRDTId.site(id);
+        int nodeClock = CRDTId.clock(id);
+        clock = Math.max(clock, nodeClock);
+
+        textCache = null;
+
+        int parentOffset = offsetOf(parent, parentId);
+        if (parentOffset == parent.length - 1 && canExtend(parent, site, nodeClock)) {
+            parent.append(c);
+            index.updateWeight(parent);
+        } else {
+            if (parentOffset < parent.length - 1)
+                split(parent, parentOffset + 1);
+
+            CRDTNode newNode = new CRDTNode(site, nodeClock, c, parent);
+            int slot = childSlot(parent.children, newNode);
+            parent.children.add(slot, newNode);
+            nodeMap.put(newNode);
+
+            // A node follows its parent, or else precedes the sibling after it,
+            // or else closes the parent's subtree
+            if (slot == 0) {
+                index.insertAfter(parent, newNode);
+            } else if (slot + 1 < parent.children.size()) {
+                index.insertBefore(parent.children.get(slot + 1), newNode);
+            } else {
+                index.insertLastChild(parent, newNode);
+            }
+        }
+
+        processPendingInserts(id);
+    }
+
+    /**
+     * Allocates ids for a run of characters typed after the given parent, the
+     * first character at parentId and each following one after the previous
+     *
+     * @return The id of the first character
+     */
+    public long insertRun(CharSequence text, long parentId) {
+        long id = CRDTId.of(siteId, clock + 1);
+        insertRunWithId(id, text, parentId, null);
+        return id;
+    }
+
+    /**
+     * Integrates a run of characters with consecutive ids starting at id.
+     * Equivalent to inserting them one by one, each after the previous one.
+     *
+     * @param changes Receives the visible inserts, in the order they apply
+     */
+    public void insertRunWithId(long id, CharSequence text, long parentId, List<TextChange> changes) {
+        if (nodeMap.get(id) != null || CRDTId.clock(id) <= collectedClock) {
+            // Re-inserting known ids (undo of a range delete) revives them in place
+            markRange(id, text.length(), false, changes);
+            return;
+        }
+
+        int before = index.visibleSize();
+        insertWithId(id, text.charAt(0), parentId);
+
+        // Once the first character is in place the rest normally just extends its run
+        int i = 1;
+        CRDTNode run = nodeMap.get(id);
+        if (run != null && pendingInserts.isEmpty()) {
+            int site = CRDTId.site(id);
+            while (i < text.length() && offsetOf(run, id + i - 1) == run.length - 1
+                    && canExtend(run, site, CRDTId.clock(id) + i)) {
+                run.append(text.charAt(i));
+                i++;
+            }
+            if (i > 1) {
+                clock = Math.max(clock, CRDTId.clock(id) + i - 1);
+                index.updateWeight(run);
+                textCache = null;
+            }
+        }
+        for (; i < text.length(); i++)
+            insertWithId(id + i, text.charAt(i), id + i - 1);
+
+        // The run and any buffered descendants it released all follow its
+        // first character
+        int inserted = index.visibleSize() - before;
+        if (changes != null && inserted > 0) {
+            int start = getVisiblePositionByNodeID(id);
+            changes.add(new TextChange(start, start, getText(start, start + inserted)));
+        }
+    }
+
+    /**
+     * A character typed right after the end of a run by the same site, with
+     * nothing else attached there yet, simply extends the run
+     */
+    private boolean canExtend(CRDTNode node, int site, int nodeClock) {
+        return node != root
+                && !node.deleted
+                && node.site == site
+                && node.clock + node.length == nodeClock
+                && node.children.isEmpty();
+    }
+
+    private void processPendingInserts(long resolvedParentId) {
+        if (pendingInserts.isEmpty() || resolving)
+            return;
+
+        // Resolve chains of buffered inserts with a worklist rather than recursion
+        Deque<Long> resolved = new ArrayDeque<>();
+        resolved.add(resolvedParentId);
+        resolving = true;
+        try {
+            while (!resolved.isEmpty()) {
+                List<PendingNode> pendings = pendingInserts.remove(resolved.poll());
+                if (pendings == null)
+                    continue;
+
+                for (PendingNode pending : pendings) {
+                    insertWithId(pending.id, pending.value, pending.parentId);
+                    resolved.add(pending.id);
+                }
+            }
+        } finally {
+            resolving = false;
+        }
+    }
+
+    private static int childSlot(List<CRDTNode> siblings, CRDTNode node) {
+        int lo = 0;
+        int hi = siblings.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (NODE_ORDER.compare(siblings.get(mid), node) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static int offsetOf(CRDTNode node, long id) {
+        return CRDTId.clock(id) - node.clock;
+    }
+
+    /**
+     * Splits a run so that a new node starts at the given offset, and returns it
+     */
+    private CRDTNode split(CRDTNode node, int offset) {
+        CRDTNode tail = node.splitAt(offset);
+        nodeMap.put(tail);
+        index.updateWeight(node);
+        index.insertSplit(node, tail);
+        return tail;
+    }
+
+    /**
+     * Splits a run as needed so that the character at the given offset sits in
+     * a node of its own, and returns that node
+     */
+    private CRDTNode isolate(CRDTNode node, int offset) {
+        if (offset > 0)
+            node = split(node, offset);
+        if (node.length > 1)
+            split(node, 1);
+        return node;
+    }
+
+    public void delete(long id) {
+        CRDTNode node = nodeMap.get(id);
+        if (node == null || node == root || node.deleted)
+            return;
+
+        node = isolate(node, offsetOf(node, id));
+        node.deleted = true;
+        index.updateWeight(node);
+        textCache = null;
+    }
+
+    /**
+     * Deletes the characters with ids id .. id + count - 1
+     *
+     * @param changes Receives the visible deletes, in the order they apply
+     */
+    public void deleteRange(long id, int count, List<TextChange> changes) {
+        markRange(id, count, true, changes);
+    }
+
+    /**
+     * Sets the deleted flag of a range of consecutive ids, a whole run
+     * segment at a time. Ids that are unknown or already collected are
+     * skipped.
+     */
+    private void markRange(long id, int count, boolean deleted, List<TextChange> changes) {
+        long end = id + count;
+        while (id < end) {
+            CRDTNode node = nodeMap.get(id);
+            if (node == null || node == root) {
+                id++;
+                continue;
+            }
+
+            int offset = offsetOf(node, id);
+            int take = (int) Math.min(node.length - offset, end - id);
+            if (node.deleted != deleted) {
+                if (offset > 0)
+                    node = split(node, offset);
+                if (node.length > take)
+                    split(node, take);
+
+                int position = index.rank(node);
+                node.deleted = deleted;
+                index.updateWeight(node);
+                textCache = null;
+
+                if (changes != null) {
+                    changes.add(deleted
+                            ? new TextChange(position, position + take, "")
+                            : new TextChange(position, position, new String(node.text, 0, node.length)));
+                }
+            }
+            id += take;
+        }
+    }
+
+    /**
+     * Physically removes the tombstones among ids id .. id + count - 1 whose
+     * delete every replica has seen.
+     *
+     * A tombstone's children take its place among its parent's children,
+     * which keeps the document order. That only stays consistent with later
+     * inserts if every child is older than anything still in flight, i.e. its
+     * clock is at most {@code stableClock}; otherwise the tombstone is kept.
+     *
+     * @return false if some tombstone has to be kept for now
+     */
+    public boolean collectTombstones(long id, int count, int stableClock) {
+        boolean collected = true;
+        long end = id + count;
+        while (id < end) {
+            CRDTNode node = nodeMap.get(id);
+            if (node == null || node == root) {
+                id++;
+                continue;
+            }
+
+            int offset = offsetOf(node, id);
+            int take = (int) Math.min(node.length - offset, end - id);
+            id += take;
+            if (!node.deleted)
+                continue;
+
+            if (offset > 0)
+                node = split(node, offset);
+            if (node.length > take)
+                split(node, take);
+            if (!removeTombstone(node, stableClock))
+                collected = false;
+        }
+        return collected;
+    }
+
+    private boolean removeTombstone(CRDTNode node, int stableClock) {
+        for (CRDTNode child : node.children) {
+            if (child.clock > stableClock)
+                return false;
+        }
+
+        CRDTNode parent = node.parent;
+        int slot = parent.children.indexOf(node);
+        parent.children.remove(slot);
+        parent.children.addAll(slot, node.children);
+        for (CRDTNode child : node.children)
+            child.parent = parent;
+
+        nodeMap.remove(node);
+        index.remove(node);
+        collectedClock = Math.max(collectedClock, stableClock);
+        return true;
+    }
+
+    /**
+     * Captures the whole tree, tombstones included, as runs in document order
+     */
+    public CRDTSnapshot snapshot() {
+        CRDTSnapshot snapshot = new CRDTSnapshot();
+        snapshot.collectedClock = collectedClock;
+        for (CRDTNode node = index.next(root); node != null; node = index.next(node)) {
+            CRDTNode parent = node.parent;
+            snapshot.runs.add(new CRDTSnapshot.Run(
+                    node.id(),
+                    parent.id(parent.length - 1),
+                    new String(node.text, 0, node.length),
+                    node.deleted));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the tree from a snapshot. Sibling order after tombstone
+     * collection is not always the insert order, so the runs are linked in
+     * exactly the order the snapshot lists them; that needs an empty replica.
+     */
+    public void load(CRDTSnapshot snapshot) {
+        if (index.next(root) != null)
+            throw new IllegalStateException("A snapshot can only be loaded into an empty replica");
+
+        // The runs come in document order, so everything linked since a run's
+        // parent is in the parent's subtree, and each run is its last child
+        for (CRDTSnapshot.Run run : snapshot.runs) {
+            CRDTNode parent = nodeMap.get(run.parentId);
+            if (parent == null)
+                throw new IllegalArgumentException("Snapshot run " + CRDTId.toString(run.id) + " precedes its parent");
+
+            int site = CRDTId.site(run.id);
+            int runClock = CRDTId.clock(run.id);
+            clock = Math.max(clock, runClock + run.text.length() - 1);
+
+            int parentOffset = offsetOf(parent, run.parentId);
+            if (parentOffset == parent.length - 1 && !run.deleted && canExtend(parent, site, runClock)) {
+                for (int i = 0; i < run.text.length(); i++)
+                    parent.append(run.text.charAt(i));
+                index.updateWeight(parent);
+                continue;
+            }
+
+            if (parentOffset < parent.length - 1)
+                split(parent, parentOffset + 1);
+
+            CRDTNode node = new CRDTNode(site, runClock, run.text.charAt(0), parent);
+            for (int i = 1; i < run.text.length(); i++)
+                node.append(run.text.charAt(i));
+            node.deleted = run.deleted;
+
+            parent.children.add(node);
+            nodeMap.put(node);
+            index.insertLastChild(parent, node);
+        }
+
+        // Ids up to the collected clock are taken even if no run shows them
+        collectedClock = Math.max(collectedClock, snapshot.collectedClock);
+        clock = Math.max(clock, collectedClock);
+        textCache = null;
+    }
+
+    /**
+     * Returns the visible text. The string is cached until the next change.
+     */
+    public String buildText() {
+        if (textCache == null)
+            textCache = getText(0, index.visibleSize());
+        return textCache;
+    }
+
+    /**
+     * Returns a live view of the visible text backed by the sequence index.
+     * Reads cost O(log n) and nothing is copied until a range is extracted.
+     */
+    public CharSequence getText() {
+        return textView;
+    }
+
+    /**
+     * Copies the visible text between two positions
+     */
+    public String getText(int start, int end) {
+        if (start < 0 || end > index.visibleSize() || start > end)
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ")");
+        if (start == end)
+            return "";
+
+        // Walk the balanced sequence index; the CRDT tree can be as deep as the document is long
+        StringBuilder sb = new StringBuilder(end - start);
+        CRDTNode node = index.select(start);
+        int offset = start - index.rank(node);
+        int remaining = end - start;
+        while (remaining > 0) {
+            if (!node.deleted && node != root) {
+                int take = Math.min(node.length - offset, remaining);
+                sb.append(node.text, offset, take);
+                remaining -= take;
+            }
+            offset = 0;
+            node = index.next(node);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the id of the visible character at the given position, or -1
+     */
+    public long getIdByPosition(int pos) {
+        CRDTNode node = index.select(pos);
+        return node == null ? -1 : node.id(pos - index.rank(node));
+    }
+
+    /**
+     * Splits the visible text between two positions into ranges of
+     * consecutive ids, in document order
+     *
+     * @return The first id and the length of each range
+     */
+    public List<long[]> getIdRanges(int start, int end) {
+        List<long[]> ranges = new ArrayList<>();
+        if (start >= end)
+            return ranges;
+
+        CRDTNode node = index.select(start);
+        int offset = start - index.rank(node);
+        int remaining = end - start;
+        while (remaining > 0) {
+            if (!node.deleted && node != root) {
+                int take = Math.min(node.length - offset, remaining);
+                long first = node.id(offset);
+                long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[0] + last[1] == first) {
+                    last[1] += take;
+                } else {
+                    ranges.add(new long[] { first, take });
+                }
+                remaining -= take;
+            }
+            offset = 0;
+            node = index.next(node);
+        }
+        return ranges;
+    }
+
+    /**
+     * Whether the id belongs to this replica, tombstones already collected
+     * included
+     */
+    public boolean contains(long id) {
+        return nodeMap.get(id) != null || CRDTId.clock(id) <= collectedClock;
+    }
+
+    /**
+     * Highest clock this replica has handed out or seen
+     */
+    public int getClock() {
+        return clock;
+    }
+
+    /**
+     * Makes ids handed out from now on come after the given clock
+     */
+    public void advanceClock(int clock) {
+        this.clock = Math.max(this.clock, clock);
+    }
+
+    /**
+     * Returns the id of the character the given one was inserted after
+     */
+    public long getParentId(long id) {
+        CRDTNode node = nodeMap.get(id);
+        if (node == null || node == root)
+            return CRDTId.ROOT;
+
+        int offset = offsetOf(node, id);
+        return offset > 0 ? id - 1 : node.parent.id(node.parent.length - 1);
+    }
+
+    public char getValue(long id) {
+        CRDTNode node = nodeMap.get(id);
+        return node == null ? '\0' : node.charAt(offsetOf(node, id));
+    }
+
+    public int getVisiblePositionByNodeID(long id) {
+        if (id == CRDTId.ROOT)
+            return 0;
+
+        CRDTNode node = nodeMap.get(id);
+        if (node == null)
+            return -1;
+
+        // A deleted character reports the position it used to occupy
+        int rank = index.rank(node);
+        return node.deleted ? rank : rank + offsetOf(node, id);
+    }
+
+    public long getInsertParentIdByPosition(int pos) {
+        int size = index.visibleSize();
+        if (pos <= 0 || size == 0)
+            return CRDTId.ROOT;
+        if (pos >= size)
+            return getIdByPosition(size - 1);
+        return getIdByPosition(pos - 1);
+    }
+
+    private static class PendingNode {
+        final long id;
+        final char value;
+        final long parentId;
+
+        PendingNode(long id, char value, long parentId) {
+            this.id = id;
+            this.value = value;
+            this.parentId = parentId;
+        }
+    }
+
+    private class TextView implements CharSequence {
+        @Override
+        public int length() {
+            return index.visibleSize();
+        }
+
+        @Override
+        public char charAt(int pos) {
+            CRDTNode node = index.select(pos);
+            if (node == null)
+                throw new IndexOutOfBoundsException("index " + pos);
+            return node.text[pos - index.rank(node)];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return getText(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return buildText();
+        }
+    }
+}
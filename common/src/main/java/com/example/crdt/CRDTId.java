@@ -0,0 +1,28 @@
+package com.example.crdt;
+
+/**
+ * Packs a node identifier into a single long: the server-assigned site id in
+ * the high 32 bits and the author's Lamport clock in the low 32 bits.
+ */
+public final class CRDTId {
+    public static final long ROOT = 0L;
+
+    private CRDTId() {
+    }
+
+    public static long of(int site, int clock) {
+        return ((long) site << 32) | (clock & 0xFFFFFFFFL);
+    }
+
+    public static int site(long id) {
+        return (int) (id >>> 32);
+    }
+
+    public static int clock(long id) {
+        return (int) id;
+    }
+
+    public static String toString(long id) {
+        return site(id) + ":" + clock(id);
+    }
+}
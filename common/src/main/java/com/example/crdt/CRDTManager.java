@@ -0,0 +1,396 @@
+package com.example.crdt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+public class CRDTManager {
+    // Largest STOMP frame the client and the server accept from each other
+    public static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+
+    // Longest run sent as one operation, so that a frame stays well within
+    // MAX_MESSAGE_BYTES however the characters get escaped: at most 6 bytes a
+    // character as JSON, 7 once SockJS quotes the frame again
+    public static final int MAX_RUN_LENGTH = 65536;
+
+    private CRDTDocument crdt;
+    private final int siteId;
+
+    // Highest server sequence number integrated so far
+    private long lastSeq = 0;
+    private int maxClock = 0;
+    // Highest clock of an id inserted by this site that the server has sequenced
+    private int confirmedClock = 0;
+
+    // Server-sequenced operations not yet known to be stable, oldest first
+    private final Deque<SequencedOp> unstable = new ArrayDeque<>();
+    // First id and length of each range of deleted ids awaiting collection
+    private final Deque<long[]> tombstones = new ArrayDeque<>();
+
+    public CRDTManager(int siteId) {
+        this.siteId = siteId;
+        this.crdt = new CRDTDocument(siteId);
+    }
+
+    /**
+     * Creates an insert operation at the specified position
+     */
+    public CRDTOperation createInsertOperation(char c, int position) {
+        long parentId = crdt.getInsertParentIdByPosition(position);
+        long insertedId = crdt.insert(c, parentId);
+
+        return new CRDTOperation(
+                siteId,
+                OperationType.INSERT,
+                c,
+                position,
+                insertedId,
+                parentId);
+    }
+
+    /**
+     * Creates a delete operation at the specified position
+     */
+    public CRDTOperation createDeleteOperation(int position) {
+        long id = crdt.getIdByPosition(position);
+        if (id >= 0) {
+            CRDTOperation deleteOp = new CRDTOperation(
+                    siteId,
+                    OperationType.DELETE,
+                    crdt.getValue(id),
+                    position,
+                    id,
+                    crdt.getParentId(id));
+
+            crdt.delete(id);
+            return deleteOp;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the operations that insert text at the specified position: a
+     * single INSERT for one character, otherwise INSERT_RUNs of at most
+     * {@link #MAX_RUN_LENGTH} characters
+     */
+    public List<CRDTOperation> createInsertOperations(String text, int position) {
+        List<CRDTOperation> ops = new ArrayList<>();
+        if (text.length() == 1) {
+            ops.add(createInsertOperation(text.charAt(0), position));
+            return ops;
+        }
+
+        for (int offset = 0; offset < text.length(); offset += MAX_RUN_LENGTH) {
+            String run = text.substring(offset, Math.min(text.length(), offset + MAX_RUN_LENGTH));
+            long parentId = crdt.getInsertParentIdByPosition(position + offset);
+            long insertedId = crdt.insertRun(run, parentId);
+
+            CRDTOperation op = new CRDTOperation(siteId, OperationType.INSERT_RUN, '\0',
+                    position + offset, insertedId, parentId);
+            op.text = run;
+            ops.add(op);
+        }
+        return ops;
+    }
+
+    /**
+     * Creates the operations that delete the text between two positions: one
+     * per range of consecutive ids, a DELETE when the range is one character
+     */
+    public List<CRDTOperation> createDeleteOperations(int start, int end) {
+        List<CRDTOperation> ops = new ArrayList<>();
+        int position = start;
+        for (long[] range : crdt.getIdRanges(start, end)) {
+            int length = (int) range[1];
+            long id = range[0];
+            if (length == 1) {
+                ops.add(new CRDTOperation(siteId, OperationType.DELETE, crdt.getValue(id), start, id,
+                        crdt.getParentId(id)));
+            } else {
+                CRDTOperation op = new CRDTOperation(siteId, OperationType.DELETE_RANGE, '\0', start, id,
+                        crdt.getParentId(id));
+                op.text = crdt.getText(position, position + length);
+                ops.add(op);
+            }
+            position += length;
+        }
+
+        // Each operation's position is where it applies after the ones before it
+        for (CRDTOperation op : ops) {
+            if (op.type == OperationType.DELETE) {
+                crdt.delete(op.id);
+            } else {
+                crdt.deleteRange(op.id, op.text.length(), null);
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Applies an operation to the CRDT document
+     *
+     * @return The changes to the visible text in order, empty if nothing
+     *         visible changed
+     */
+    public List<TextChange> applyOperation(CRDTOperation op) {
+        List<TextChange> changes = new ArrayList<>(1);
+        if (op.type == OperationType.STABLE) {
+            collectGarbage(op.seq);
+            return changes;
+        }
+
+        integrate(op, changes);
+        recordSequenced(op);
+        return changes;
+    }
+
+    /**
+     * Integrates a batch of server operations in order. Echoes of this site's
+     * own operations are only recorded, since they were applied when created.
+     *
+     * @return The changes to the visible text in order, adjacent ones merged
+     */
+    public List<TextChange> applyOperations(List<CRDTOperation> ops) {
+        List<TextChange> changes = new ArrayList<>();
+        for (CRDTOperation op : ops) {
+            if (isIntegrated(op))
+                continue;
+            if (isEcho(op)) {
+                confirmOperation(op);
+                continue;
+            }
+
+            for (TextChange change : applyOperation(op)) {
+                int last = changes.size() - 1;
+                TextChange merged = last >= 0 ? changes.get(last).mergeWith(change) : null;
+                if (merged != null) {
+                    changes.set(last, merged);
+                } else {
+                    changes.add(change);
+                }
+            }
+        }
+        return changes;
+    }
+
+    private boolean isIntegrated(CRDTOperation op) {
+        // Already part of a loaded snapshot
+        return op.type != OperationType.STABLE && op.seq > 0 && op.seq <= lastSeq;
+    }
+
+    private boolean isEcho(CRDTOperation op) {
+        return op.type != OperationType.STABLE && op.site == siteId;
+    }
+
+    private void integrate(CRDTOperation op, List<TextChange> changes) {
+        TextChange change = null;
+        if (op.type == OperationType.INSERT) {
+            change = integrateInsert(op);
+        } else if (op.type == OperationType.DELETE) {
+            change = integrateDelete(op);
+        } else if (op.type == OperationType.INSERT_RUN) {
+            crdt.insertRunWithId(op.id, op.text, op.parentId, changes);
+        } else if (op.type == OperationType.DELETE_RANGE) {
+            crdt.deleteRange(op.id, op.text.length(), changes);
+        }
+
+        if (change != null)
+            changes.add(change);
+    }
+
+    private TextChange integrateInsert(CRDTOperation op) {
+        CharSequence text = crdt.getText();
+        int before = text.length();
+        crdt.insertWithId(op.id, op.character, op.parentId);
+
+        // The new character and any buffered descendants it released form a
+        // single run in document order, starting at the new character
+        int inserted = text.length() - before;
+        if (inserted == 0)
+            return null;
+
+        int start = crdt.getVisiblePositionByNodeID(op.id);
+        return new TextChange(start, start, crdt.getText(start, start + inserted));
+    }
+
+    private TextChange integrateDelete(CRDTOperation op) {
+        CharSequence text = crdt.getText();
+        int before = text.length();
+        int position = crdt.getVisiblePositionByNodeID(op.id);
+        crdt.delete(op.id);
+
+        if (text.length() == before)
+            return null;
+        return new TextChange(position, position + 1, "");
+    }
+
+    /**
+     * Captures the replica together with the last sequence number it includes
+     */
+    public CRDTSnapshot snapshot() {
+        CRDTSnapshot snapshot = crdt.snapshot();
+        snapshot.seq = lastSeq;
+        return snapshot;
+    }
+
+    /**
+     * Loads a snapshot taken by the server into this still empty replica.
+     * Operations it already includes are skipped when they arrive later.
+     */
+    public void loadSnapshot(CRDTSnapshot snapshot) {
+        crdt.load(snapshot);
+
+        // The snapshot counts as one operation sequenced at its seq, so its
+        // tombstones are collected once that is stable
+        lastSeq = snapshot.seq;
+        for (CRDTSnapshot.Run run : snapshot.runs)
+            maxClock = Math.max(maxClock, CRDTId.clock(run.id) + run.text.length() - 1);
+        unstable.addLast(new SequencedOp(lastSeq, maxClock, -1, 0));
+        for (CRDTSnapshot.Run run : snapshot.runs) {
+            if (run.deleted)
+                unstable.addLast(new SequencedOp(lastSeq, maxClock, run.id, run.text.length()));
+        }
+    }
+
+    /**
+     * Replaces the replica with a snapshot the server sent after dropping
+     * operations on their way here. The server sequences this site's
+     * operations in the order they were sent, so the snapshot holds some of
+     * the unconfirmed ones up to a point and none after it. Those up to the
+     * last one that inserted new ids the snapshot has are part of it; the
+     * rest are applied again on top of it. Undo re-inserts ids that exist
+     * already, so it says nothing about where that point is, and a revival
+     * after it is applied again even if the snapshot shows a tombstone.
+     *
+     * @param unconfirmed Own operations the server has not echoed yet, oldest
+     *                    first
+     */
+    public void resync(CRDTSnapshot snapshot, List<CRDTOperation> unconfirmed) {
+        int clock = crdt.getClock();
+        crdt = new CRDTDocument(siteId);
+        unstable.clear();
+        tombstones.clear();
+        loadSnapshot(snapshot);
+
+        // Ids this site handed out before must not be handed out again
+        crdt.advanceClock(clock);
+
+        // New ids come after every id this site inserted before
+        int included = -1;
+        int minted = confirmedClock;
+        for (int i = 0; i < unconfirmed.size(); i++) {
+            CRDTOperation op = unconfirmed.get(i);
+            if (isInsert(op) && CRDTId.site(op.id) == siteId && CRDTId.clock(op.id) > minted) {
+                minted = lastClock(op);
+                if (crdt.contains(op.id))
+                    included = i;
+            }
+        }
+
+        for (int i = 0; i < unconfirmed.size(); i++) {
+            CRDTOperation op = unconfirmed.get(i);
+            if (i <= included) {
+                confirmInsert(op);
+            } else {
+                integrate(op, new ArrayList<>());
+            }
+        }
+    }
+
+    /**
+     * Records the server's echo of an operation this site already applied
+     */
+    public void confirmOperation(CRDTOperation op) {
+        confirmInsert(op);
+        recordSequenced(op);
+    }
+
+    /**
+     * Highest server sequence number integrated into this replica
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    private void confirmInsert(CRDTOperation op) {
+        if (isInsert(op))
+            confirmedClock = Math.max(confirmedClock, lastClock(op));
+    }
+
+    private static boolean isInsert(CRDTOperation op) {
+        return op.type == OperationType.INSERT || op.type == OperationType.INSERT_RUN;
+    }
+
+    // Clock of the last id an operation covers
+    private static int lastClock(CRDTOperation op) {
+        return CRDTId.clock(op.id) + (op.text != null ? op.text.length() : 1) - 1;
+    }
+
+    private void recordSequenced(CRDTOperation op) {
+        // Locally applied undo/redo has no sequence number until it is echoed
+        if (op.seq <= lastSeq)
+            return;
+
+        int length = op.text != null ? op.text.length() : 1;
+        lastSeq = op.seq;
+        maxClock = Math.max(maxClock, CRDTId.clock(op.id) + length - 1);
+
+        if (op.type == OperationType.DELETE || op.type == OperationType.DELETE_RANGE) {
+            unstable.addLast(new SequencedOp(op.seq, maxClock, op.id, length));
+        } else {
+            unstable.addLast(new SequencedOp(op.seq, maxClock, -1, 0));
+        }
+    }
+
+    /**
+     * Every replica has integrated all operations up to {@code stableSeq}, so
+     * tombstones created by them are no longer needed as insert anchors
+     */
+    private void collectGarbage(long stableSeq) {
+        int stableClock = -1;
+        while (!unstable.isEmpty() && unstable.peekFirst().seq <= stableSeq) {
+            SequencedOp op = unstable.pollFirst();
+            stableClock = op.maxClock;
+            if (op.deletedId >= 0)
+                tombstones.addLast(new long[] { op.deletedId, op.deletedCount });
+        }
+        if (stableClock < 0)
+            return;
+
+        int pending = tombstones.size();
+        for (int i = 0; i < pending; i++) {
+            long[] range = tombstones.pollFirst();
+            if (!crdt.collectTombstones(range[0], (int) range[1], stableClock))
+                tombstones.addLast(range);
+        }
+    }
+
+    /**
+     * Builds the text from the CRDT document
+     */
+    public String buildText() {
+        return crdt.buildText();
+    }
+
+    /**
+     * Live view of the document text that is not copied per change
+     */
+    public CharSequence getText() {
+        return crdt.getText();
+    }
+
+    private static class SequencedOp {
+        final long seq;
+        final int maxClock;
+        final long deletedId;
+        final int deletedCount;
+
+        SequencedOp(long seq, int maxClock, long deletedId, int deletedCount) {
+            this.seq = seq;
+            this.maxClock = maxClock;
+            this.deletedId = deletedId;
+            this.deletedCount = deletedCount;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.crdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A run of consecutive characters typed by one site.
+ *
+ * Character i of the run has id (site, clock + i) and is the only child of
+ * character i - 1, so the run as a whole behaves like a chain of single
+ * character nodes. Children of the run always hang off its last character;
+ * inserting after or deleting a character in the middle splits the run first.
+ */
+public class CRDTNode {
+    public final int site;
+    public final int clock;
+    public boolean deleted = false;
+    public CRDTNode parent;
+    public final List<CRDTNode> children = new ArrayList<>(0);
+
+    char[] text;
+    int length;
+
+    // Invisible marker that follows the node's last descendant in the
+    // SequenceIndex, so the node's subtree lies between the two; null for a
+    // marker itself
+    final CRDTNode end;
+
+    // Links and subtree visible count maintained by SequenceIndex
+    CRDTNode left;
+    CRDTNode right;
+    CRDTNode up;
+    int priority;
+    int visibleCount;
+
+    public CRDTNode(int site, int clock, char value, CRDTNode parent) {
+        this.site = site;
+        this.clock = clock;
+        this.parent = parent;
+        this.text = new char[] { value };
+        this.length = 1;
+        this.end = new CRDTNode();
+    }
+
+    private CRDTNode(int site, int clock, char[] text, int length, CRDTNode parent) {
+        this.site = site;
+        this.clock = clock;
+        this.parent = parent;
+        this.text = text;
+        this.length = length;
+        this.end = new CRDTNode();
+    }
+
+    // End marker: no parent and no characters, so it never weighs anything
+    private CRDTNode() {
+        this.site = -1;
+        this.clock = 0;
+        this.text = new char[0];
+        this.length = 0;
+        this.end = null;
+    }
+
+    public long id() {
+        return CRDTId.of(site, clock);
+    }
+
+    public long id(int offset) {
+        return CRDTId.of(site, clock + offset);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int offset) {
+        return text[offset];
+    }
+
+    /**
+     * Whether this is another node's end marker rather than a run
+     */
+    boolean isEnd() {
+        return end == null;
+    }
+
+    /**
+     * Whether the character with the given clock belongs to this run
+     */
+    boolean contains(int charClock) {
+        return charClock >= clock && charClock - clock < length;
+    }
+
+    void append(char value) {
+        if (length == text.length)
+            text = Arrays.copyOf(text, Math.max(4, length * 2));
+        text[length++] = value;
+    }
+
+    /**
+     * Cuts this run at the given offset and returns the tail as a new node.
+     * The tail becomes the only child of this node and takes over its children.
+     */
+    CRDTNode splitAt(int offset) {
+        CRDTNode tail = new CRDTNode(site, clock + offset,
+                Arrays.copyOfRange(text, offset, length), length - offset, this);
+        tail.deleted = deleted;
+
+        tail.children.addAll(children);
+        for (CRDTNode child : tail.children)
+            child.parent = tail;
+        children.clear();
+        children.add(tail);
+
+        length = offset;
+        text = Arrays.copyOf(text, offset);
+        return tail;
+    }
+}
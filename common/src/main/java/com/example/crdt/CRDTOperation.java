@@ -4,41 +4,41 @@ import java.util.Objects;
 
 public class CRDTOperation {
     public OperationType type;
-    public String documentID;
-    public String userID;
-    public String id;
+    public int site;
+    public long id;
     public char character;
     public int position;
-    public String parentNodeId;
-    public String forID;
+    public long parentId;
+
+    // Characters of an INSERT_RUN or DELETE_RANGE, null for single characters
+    public String text;
+
+    // Assigned by the server in the order operations are accepted
+    public long seq;
 
     public CRDTOperation() {
-        this.forID = null;
     }
 
-    public CRDTOperation(String userID, String docID, OperationType type, char character, int position, String id,
-            String parentNodeId) {
-        this.userID = userID;
-        this.documentID = docID;
+    public CRDTOperation(int site, OperationType type, char character, int position, long id, long parentId) {
+        this.site = site;
         this.type = type;
         this.character = character;
         this.position = position;
         this.id = id;
-        this.parentNodeId = parentNodeId;
-        this.forID = null;
+        this.parentId = parentId;
     }
 
     @Override
     public String toString() {
         return "CRDTOperation{" +
-                "userID='" + userID + '\'' +
-                ", docID='" + documentID + '\'' +
+                "site=" + site +
                 ", type=" + type +
                 ", character=" + character +
                 ", position=" + position +
-                ", id='" + id + '\'' +
-                ", parentNodeId='" + parentNodeId + '\'' +
-                ", forID='" + forID + '\'' +
+                ", id=" + CRDTId.toString(id) +
+                ", parentId=" + CRDTId.toString(parentId) +
+                ", seq=" + seq +
+                (text != null ? ", length=" + text.length() : "") +
                 '}';
     }
 
@@ -51,14 +51,14 @@ public class CRDTOperation {
         CRDTOperation that = (CRDTOperation) o;
         return character == that.character &&
                 position == that.position &&
-                userID == that.userID &&
+                site == that.site &&
                 type == that.type &&
-                documentID == that.documentID &&
-                Objects.equals(id, that.id);
+                id == that.id &&
+                Objects.equals(text, that.text);
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(type, id, character, position);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package com.example.crdt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a replica as a list of runs in document order, tombstones
+ * included. Every run comes after the run it was inserted after, and
+ * siblings come in the order the replica keeps them, so loading the runs in
+ * order rebuilds the same tree.
+ */
+public class CRDTSnapshot {
+    // What a run costs in a part on top of its characters, for its ids
+    private static final int RUN_OVERHEAD = 16;
+
+    // Highest server sequence number the snapshot includes
+    public long seq;
+    public int collectedClock;
+    public List<Run> runs;
+
+    // Set on every part of a split snapshot but the last
+    public boolean more;
+
+    public CRDTSnapshot() {
+        this.runs = new ArrayList<>();
+    }
+
+    /**
+     * Splits the snapshot into parts of at most maxCharacters characters each,
+     * counting a fixed overhead per run, so that every part fits in a frame.
+     * Runs too long for one part are cut into consecutive pieces, each
+     * inserted after the end of the one before.
+     */
+    public List<CRDTSnapshot> split(int maxCharacters) {
+        List<CRDTSnapshot> parts = new ArrayList<>();
+        CRDTSnapshot part = emptyPart();
+        int size = 0;
+        for (Run run : runs) {
+            int offset = 0;
+            while (offset < run.text.length()) {
+                if (size + RUN_OVERHEAD >= maxCharacters && !part.runs.isEmpty()) {
+                    part.more = true;
+                    parts.add(part);
+                    part = emptyPart();
+                    size = 0;
+                }
+
+                int take = Math.min(run.text.length() - offset, Math.max(1, maxCharacters - size - RUN_OVERHEAD));
+                long parentId = offset == 0 ? run.parentId : run.id + offset - 1;
+                part.runs.add(new Run(run.id + offset, parentId, run.text.substring(offset, offset + take),
+                        run.deleted));
+                size += take + RUN_OVERHEAD;
+                offset += take;
+            }
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /**
+     * Adds the runs of the next part of a split snapshot
+     */
+    public void append(CRDTSnapshot part) {
+        runs.addAll(part.runs);
+        more = part.more;
+    }
+
+    private CRDTSnapshot emptyPart() {
+        CRDTSnapshot part = new CRDTSnapshot();
+        part.seq = seq;
+        part.collectedClock = collectedClock;
+        return part;
+    }
+
+    /**
+     * Consecutive characters of one site, each inserted after the previous one
+     */
+    public static class Run {
+        public long id;
+        public long parentId;
+        public String text;
+        public boolean deleted;
+
+        public Run() {
+        }
+
+        public Run(long id, long parentId, String text, boolean deleted) {
+            this.id = id;
+            this.parentId = parentId;
+            this.text = text;
+            this.deleted = deleted;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.crdt;
+
+import java.util.Arrays;
+
+/**
+ * Lookup from (site, clock) identifiers to nodes without boxing.
+ *
+ * Site ids come from a counter on the server that keeps growing across
+ * launches, so a document only ever sees a few of them spread over a wide
+ * range. Each site present gets a slot in a small open-addressing table. A
+ * site's nodes are kept sorted by the clock of their first character; since a
+ * site's clock only grows, new nodes are almost always appended at the end. A
+ * character is found through the run that covers it.
+ */
+class NodeMap {
+    private static final CRDTNode[] EMPTY = new CRDTNode[0];
+    private static final int FREE = -1;
+
+    // Parallel arrays indexed by table slot; the capacity is a power of two
+    private int[] sites = newSites(8);
+    private CRDTNode[][] nodes = new CRDTNode[8][];
+    private int[] sizes = new int[8];
+    private int siteCount = 0;
+
+    /**
+     * Returns the node whose run contains the given character, or null
+     */
+    CRDTNode get(int site, int clock) {
+        if (site < 0)
+            return null;
+        int slot = find(site);
+        if (sites[slot] == FREE)
+            return null;
+        int i = search(nodes[slot], sizes[slot], clock);
+        if (i < 0)
+            i = -(i + 1) - 1;
+        if (i < 0)
+            return null;
+        CRDTNode node = nodes[slot][i];
+        return node.contains(clock) ? node : null;
+    }
+
+    CRDTNode get(long id) {
+        return get(CRDTId.site(id), CRDTId.clock(id));
+    }
+
+    void put(CRDTNode node) {
+        int slot = find(node.site);
+        if (sites[slot] == FREE) {
+            if ((siteCount + 1) * 2 > sites.length) {
+                grow();
+                slot = find(node.site);
+            }
+            sites[slot] = node.site;
+            nodes[slot] = EMPTY;
+            siteCount++;
+        }
+
+        CRDTNode[] list = nodes[slot];
+        int size = sizes[slot];
+        int i = search(list, size, node.clock);
+        if (i >= 0) {
+            list[i] = node;
+            return;
+        }
+
+        int at = -(i + 1);
+        if (size == list.length)
+            list = nodes[slot] = Arrays.copyOf(list, Math.max(8, size + (size >> 1)));
+        System.arraycopy(list, at, list, at + 1, size - at);
+        list[at] = node;
+        sizes[slot] = size + 1;
+    }
+
+    void remove(CRDTNode node) {
+        int slot = find(node.site);
+        if (sites[slot] == FREE)
+            return;
+
+        CRDTNode[] list = nodes[slot];
+        int size = sizes[slot];
+        int i = search(list, size, node.clock);
+        if (i < 0 || list[i] != node)
+            return;
+
+        System.arraycopy(list, i + 1, list, i, size - i - 1);
+        list[size - 1] = null;
+        sizes[slot] = size - 1;
+    }
+
+    /**
+     * The slot holding the site, or the free slot where it would go
+     */
+    private int find(int site) {
+        int mask = sites.length - 1;
+        int slot = (site * 0x9E3779B9) >>> 16 & mask;
+        while (sites[slot] != FREE && sites[slot] != site)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldSites = sites;
+        CRDTNode[][] oldNodes = nodes;
+        int[] oldSizes = sizes;
+
+        sites = newSites(oldSites.length * 2);
+        nodes = new CRDTNode[sites.length][];
+        sizes = new int[sites.length];
+        for (int i = 0; i < oldSites.length; i++) {
+            if (oldSites[i] == FREE)
+                continue;
+            int slot = find(oldSites[i]);
+            sites[slot] = oldSites[i];
+            nodes[slot] = oldNodes[i];
+            sizes[slot] = oldSizes[i];
+        }
+    }
+
+    private static int[] newSites(int capacity) {
+        int[] sites = new int[capacity];
+        Arrays.fill(sites, FREE);
+        return sites;
+    }
+
+    private static int search(CRDTNode[] list, int size, int clock) {
+        // Fast path for the common append-only case
+        if (size > 0 && list[size - 1].clock < clock)
+            return -(size + 1);
+
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midClock = list[mid].clock;
+            if (midClock < clock)
+                lo = mid + 1;
+            else if (midClock > clock)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+}
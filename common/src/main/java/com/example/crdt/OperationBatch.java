@@ -0,0 +1,19 @@
+package com.example.crdt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operations sent together in one frame, in the order they were created
+ */
+public class OperationBatch {
+    public List<CRDTOperation> operations;
+
+    public OperationBatch() {
+        this.operations = new ArrayList<>();
+    }
+
+    public OperationBatch(List<CRDTOperation> operations) {
+        this.operations = operations;
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.crdt;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compact binary encoding of a {@link CRDTOperation}.
+ *
+ * A frame starts with a flags byte, followed by unsigned varints. The author's
+ * site is written once and the ids refer back to it: the node id usually
+ * belongs to the author, and the parent of a typed character is usually the
+ * author's previous character or the root, in which case it takes no bytes at
+ * all. A keystroke typically encodes to 7-10 bytes. Range operations end
+ * with their text as a length and one varint per character.
+ */
+public final class OperationCodec {
+    private static final int TYPE_MASK = 0x07;
+    private static final int ID_SITE_IS_AUTHOR = 0x08;
+    private static final int PARENT_SITE_IS_AUTHOR = 0x10;
+    private static final int PARENT_IS_PREVIOUS = 0x20;
+    private static final int PARENT_IS_ROOT = 0x40;
+
+    private static final OperationType[] TYPES = OperationType.values();
+
+    private OperationCodec() {
+    }
+
+    public static byte[] encode(CRDTOperation op) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(op.text != null ? op.text.length() + 16 : 16);
+        write(out, op);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a batch as the number of operations followed by each of them
+     */
+    public static byte[] encode(OperationBatch batch) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * batch.operations.size());
+        writeVarint(out, batch.operations.size());
+        for (CRDTOperation op : batch.operations)
+            write(out, op);
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException If the bytes are not an encoded operation
+     */
+    public static CRDTOperation decode(byte[] bytes) {
+        return read(new Reader(bytes));
+    }
+
+    /**
+     * @throws IllegalArgumentException If the bytes are not an encoded batch
+     */
+    public static OperationBatch decodeBatch(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        long count = in.readVarint();
+        if (count > bytes.length) {
+            throw new IllegalArgumentException("Bad batch size " + count);
+        }
+
+        OperationBatch batch = new OperationBatch();
+        for (long i = 0; i < count; i++)
+            batch.operations.add(read(in));
+        return batch;
+    }
+
+    private static void write(ByteArrayOutputStream out, CRDTOperation op) {
+        int idSite = CRDTId.site(op.id);
+        int parentSite = CRDTId.site(op.parentId);
+        int flags = op.type.ordinal();
+        if (idSite == op.site) {
+            flags |= ID_SITE_IS_AUTHOR;
+        }
+        if (op.parentId == CRDTId.ROOT) {
+            flags |= PARENT_IS_ROOT;
+        } else if (op.parentId == op.id - 1 && parentSite == idSite) {
+            flags |= PARENT_IS_PREVIOUS;
+        } else if (parentSite == op.site) {
+            flags |= PARENT_SITE_IS_AUTHOR;
+        }
+        out.write(flags);
+
+        writeVarint(out, op.site & 0xFFFFFFFFL);
+        if ((flags & ID_SITE_IS_AUTHOR) == 0) {
+            writeVarint(out, idSite & 0xFFFFFFFFL);
+        }
+        writeVarint(out, CRDTId.clock(op.id) & 0xFFFFFFFFL);
+
+        if ((flags & (PARENT_IS_ROOT | PARENT_IS_PREVIOUS)) == 0) {
+            if ((flags & PARENT_SITE_IS_AUTHOR) == 0) {
+                writeVarint(out, parentSite & 0xFFFFFFFFL);
+            }
+            writeVarint(out, CRDTId.clock(op.parentId) & 0xFFFFFFFFL);
+        }
+
+        writeVarint(out, op.character);
+        // Zigzag, since a position may be -1
+        writeVarint(out, ((op.position << 1) ^ (op.position >> 31)) & 0xFFFFFFFFL);
+        writeVarint(out, op.seq);
+
+        if (hasText(op.type)) {
+            writeVarint(out, op.text.length());
+            for (int i = 0; i < op.text.length(); i++)
+                writeVarint(out, op.text.charAt(i));
+        }
+    }
+
+    private static CRDTOperation read(Reader in) {
+        int flags = in.readByte();
+        if ((flags & TYPE_MASK) >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown operation type " + (flags & TYPE_MASK));
+        }
+
+        CRDTOperation op = new CRDTOperation();
+        op.type = TYPES[flags & TYPE_MASK];
+        op.site = (int) in.readVarint();
+        int idSite = (flags & ID_SITE_IS_AUTHOR) != 0 ? op.site : (int) in.readVarint();
+        op.id = CRDTId.of(idSite, (int) in.readVarint());
+
+        if ((flags & PARENT_IS_ROOT) != 0) {
+            op.parentId = CRDTId.ROOT;
+        } else if ((flags & PARENT_IS_PREVIOUS) != 0) {
+            op.parentId = op.id - 1;
+        } else {
+            int parentSite = (flags & PARENT_SITE_IS_AUTHOR) != 0 ? op.site : (int) in.readVarint();
+            op.parentId = CRDTId.of(parentSite, (int) in.readVarint());
+        }
+
+        op.character = (char) in.readVarint();
+        int zigzag = (int) in.readVarint();
+        op.position = (zigzag >>> 1) ^ -(zigzag & 1);
+        op.seq = in.readVarint();
+
+        if (hasText(op.type)) {
+            int length = (int) in.readVarint();
+            if (length < 0 || length > in.bytes.length) {
+                throw new IllegalArgumentException("Bad text length " + length);
+            }
+            char[] text = new char[length];
+            for (int i = 0; i < length; i++)
+                text[i] = (char) in.readVarint();
+            op.text = new String(text);
+        }
+        return op;
+    }
+
+    private static boolean hasText(OperationType type) {
+        return type == OperationType.INSERT_RUN || type == OperationType.DELETE_RANGE;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int offset = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readByte() {
+            if (offset >= bytes.length) {
+                throw new IllegalArgumentException("Truncated operation frame");
+            }
+            return bytes[offset++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.crdt;
+
+public enum OperationType {
+    INSERT,
+    DELETE,
+    // Server notice that all operations up to seq are integrated everywhere
+    STABLE,
+    // Characters with consecutive ids from id on, the first inserted after
+    // parentId and each of the others after the previous one
+    INSERT_RUN,
+    // Deletes the characters with ids id .. id + text.length() - 1
+    DELETE_RANGE
+}
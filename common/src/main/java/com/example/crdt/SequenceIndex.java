@@ -0,0 +1,259 @@
+package com.example.crdt;
+
+import java.util.Random;
+
+/**
+ * Order-statistic index over the linear document order of the CRDT nodes.
+ *
+ * The nodes are kept in a treap whose in-order traversal is the document order
+ * (tombstones included). Each node caches the number of visible characters in
+ * its treap subtree, so mapping a visible position to a node and a node to its
+ * visible position are both O(log n), independent of the CRDT tree shape.
+ * A node weighs as many characters as its run holds while it is visible.
+ *
+ * Every node is followed by its descendants and then its end marker, which
+ * weighs nothing and is skipped by {@link #next}. A node's subtree is thus
+ * a contiguous range that ends at a known node, and its last child is linked
+ * without walking down to the end of the subtree.
+ */
+class SequenceIndex {
+    private final Random random = new Random();
+    private CRDTNode root;
+
+    SequenceIndex(CRDTNode first) {
+        first.priority = random.nextInt();
+        first.visibleCount = weight(first);
+        root = first;
+        link(first, first.end, false);
+    }
+
+    /**
+     * Number of visible characters in the document
+     */
+    int visibleSize() {
+        return count(root);
+    }
+
+    /**
+     * Links a new node directly after {@code pred} in document order
+     */
+    void insertAfter(CRDTNode pred, CRDTNode node) {
+        link(pred, node, false);
+        link(node, node.end, false);
+    }
+
+    /**
+     * Links a new node directly before {@code succ} in document order
+     */
+    void insertBefore(CRDTNode succ, CRDTNode node) {
+        link(succ, node, true);
+        link(node, node.end, false);
+    }
+
+    /**
+     * Links a new node as the last child of {@code parent}, after every node
+     * of the parent's subtree
+     */
+    void insertLastChild(CRDTNode parent, CRDTNode node) {
+        insertBefore(parent.end, node);
+    }
+
+    /**
+     * Links the tail split off a node directly after it. The tail took over
+     * the node's children, so its subtree closes just inside the node's own.
+     */
+    void insertSplit(CRDTNode node, CRDTNode tail) {
+        link(node, tail, false);
+        link(node.end, tail.end, true);
+    }
+
+    private void link(CRDTNode neighbour, CRDTNode node, boolean before) {
+        CRDTNode parent;
+        if (before) {
+            if (neighbour.left == null) {
+                neighbour.left = node;
+                parent = neighbour;
+            } else {
+                parent = neighbour.left;
+                while (parent.right != null)
+                    parent = parent.right;
+                parent.right = node;
+            }
+        } else {
+            if (neighbour.right == null) {
+                neighbour.right = node;
+                parent = neighbour;
+            } else {
+                parent = neighbour.right;
+                while (parent.left != null)
+                    parent = parent.left;
+                parent.left = node;
+            }
+        }
+
+        node.up = parent;
+        node.priority = random.nextInt();
+        node.visibleCount = weight(node);
+
+        for (CRDTNode p = parent; p != null; p = p.up)
+            p.visibleCount += node.visibleCount;
+
+        while (node.up != null && node.up.priority < node.priority)
+            rotateUp(node);
+    }
+
+    /**
+     * Unlinks a node and its end marker from the document order. Its
+     * children stay where they are, inside the parent's subtree.
+     */
+    void remove(CRDTNode node) {
+        unlink(node);
+        unlink(node.end);
+    }
+
+    private void unlink(CRDTNode node) {
+        // Rotate the node down to a leaf, then cut it off
+        while (node.left != null || node.right != null) {
+            CRDTNode child;
+            if (node.left == null)
+                child = node.right;
+            else if (node.right == null)
+                child = node.left;
+            else
+                child = node.left.priority > node.right.priority ? node.left : node.right;
+            rotateUp(child);
+        }
+
+        CRDTNode p = node.up;
+        if (p == null) {
+            root = null;
+        } else if (p.left == node) {
+            p.left = null;
+        } else {
+            p.right = null;
+        }
+        for (CRDTNode x = p; x != null; x = x.up)
+            x.visibleCount -= node.visibleCount;
+
+        node.up = null;
+    }
+
+    /**
+     * Re-applies a node's weight after its visibility or length changed
+     */
+    void updateWeight(CRDTNode node) {
+        int delta = weight(node) - (node.visibleCount - count(node.left) - count(node.right));
+        if (delta == 0)
+            return;
+        for (CRDTNode p = node; p != null; p = p.up)
+            p.visibleCount += delta;
+    }
+
+    /**
+     * Returns the node holding the visible character at the given position, or
+     * null if out of range
+     */
+    CRDTNode select(int pos) {
+        if (pos < 0 || pos >= count(root))
+            return null;
+
+        CRDTNode x = root;
+        while (x != null) {
+            int leftCount = count(x.left);
+            if (pos < leftCount) {
+                x = x.left;
+            } else {
+                pos -= leftCount;
+                if (pos < weight(x))
+                    return x;
+                pos -= weight(x);
+                x = x.right;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of visible characters before the given node's run
+     */
+    int rank(CRDTNode node) {
+        int r = count(node.left);
+        for (CRDTNode x = node; x.up != null; x = x.up) {
+            if (x == x.up.right)
+                r += count(x.up.left) + weight(x.up);
+        }
+        return r;
+    }
+
+    /**
+     * Returns the first node in document order (the CRDT root)
+     */
+    CRDTNode first() {
+        CRDTNode x = root;
+        while (x.left != null)
+            x = x.left;
+        return x;
+    }
+
+    /**
+     * Returns the node following the given one in document order, or null
+     */
+    CRDTNode next(CRDTNode node) {
+        CRDTNode x = successor(node);
+        while (x != null && x.isEnd())
+            x = successor(x);
+        return x;
+    }
+
+    private static CRDTNode successor(CRDTNode node) {
+        if (node.right != null) {
+            CRDTNode x = node.right;
+            while (x.left != null)
+                x = x.left;
+            return x;
+        }
+
+        CRDTNode x = node;
+        while (x.up != null && x.up.right == x)
+            x = x.up;
+        return x.up;
+    }
+
+    private void rotateUp(CRDTNode x) {
+        CRDTNode p = x.up;
+        CRDTNode g = p.up;
+
+        if (p.left == x) {
+            p.left = x.right;
+            if (x.right != null)
+                x.right.up = p;
+            x.right = p;
+        } else {
+            p.right = x.left;
+            if (x.left != null)
+                x.left.up = p;
+            x.left = p;
+        }
+        p.up = x;
+        x.up = g;
+
+        if (g == null) {
+            root = x;
+        } else if (g.left == p) {
+            g.left = x;
+        } else {
+            g.right = x;
+        }
+
+        p.visibleCount = weight(p) + count(p.left) + count(p.right);
+        x.visibleCount = weight(x) + count(x.left) + count(x.right);
+    }
+
+    private static int count(CRDTNode node) {
+        return node == null ? 0 : node.visibleCount;
+    }
+
+    private static int weight(CRDTNode node) {
+        return node.deleted || node.parent == null ? 0 : node.length;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.crdt;
+
+/**
+ * A change to the visible text: the characters in [start, end) were replaced
+ * by {@code text}
+ */
+public class TextChange {
+    public final int start;
+    public final int end;
+    public final String text;
+
+    public TextChange(int start, int end, String text) {
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    /**
+     * Combines this change with one applied right after it, if the two touch
+     *
+     * @return The combined change, or null if the changes are not adjacent
+     */
+    public TextChange mergeWith(TextChange next) {
+        int insertedEnd = start + text.length();
+
+        // The next change only touches text this change inserted
+        if (next.start >= start && next.end <= insertedEnd) {
+            return new TextChange(start, end,
+                    text.substring(0, next.start - start) + next.text + text.substring(next.end - start));
+        }
+
+        // The next change ends where this one starts, e.g. backspacing
+        if (next.end == start) {
+            return new TextChange(next.start, end, next.text + text);
+        }
+
+        // The next change starts where this one's text ends, e.g. typing or forward deletes
+        if (next.start == insertedEnd) {
+            return new TextChange(start, end + (next.end - next.start), text + next.text);
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "TextChange{" +
+                "start=" + start +
+                ", end=" + end +
+                ", text='" + text + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.messaging;
+
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.OperationBatch;
+import com.example.crdt.OperationCodec;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Converts {@link CRDTOperation}s and {@link OperationBatch}es to and from
+ * the binary {@link OperationCodec} format. It only applies to messages whose content type is
+ * application/octet-stream, so everything else falls through to JSON.
+ */
+public class BinaryOperationMessageConverter extends AbstractMessageConverter {
+    public static final MimeType CONTENT_TYPE = MimeTypeUtils.APPLICATION_OCTET_STREAM;
+
+    public BinaryOperationMessageConverter() {
+        super(CONTENT_TYPE);
+        setStrictContentTypeMatch(true);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CRDTOperation.class == clazz || OperationBatch.class == clazz;
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        Object payload = message.getPayload();
+        if (!(payload instanceof byte[])) {
+            return null;
+        }
+
+        try {
+            if (OperationBatch.class == targetClass) {
+                return OperationCodec.decodeBatch((byte[]) payload);
+            }
+            return OperationCodec.decode((byte[]) payload);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        if (payload instanceof OperationBatch) {
+            return OperationCodec.encode((OperationBatch) payload);
+        }
+        return OperationCodec.encode((CRDTOperation) payload);
+    }
+}
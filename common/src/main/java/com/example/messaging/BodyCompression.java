@@ -0,0 +1,62 @@
+package com.example.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate of STOMP bodies, and the headers that negotiate it. A deflated
+ * body is sent as application/octet-stream with its real content type in the
+ * deflated-content-type header; a client asks for deflated bodies by sending
+ * accept-encoding: deflate on CONNECT.
+ */
+public final class BodyCompression {
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String DEFLATED_CONTENT_TYPE = "deflated-content-type";
+
+    private BodyCompression() {
+    }
+
+    public static byte[] deflate(byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(body);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * @param maxBytes Largest inflated body accepted
+     * @throws IllegalArgumentException If the body is truncated, corrupt or
+     *                                  inflates to more than maxBytes
+     */
+    public static byte[] inflate(byte[] body, int maxBytes) {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflated body");
+                }
+                out.write(buffer, 0, inflated);
+                if (out.size() > maxBytes) {
+                    throw new IllegalArgumentException("Deflated body exceeds " + maxBytes + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt deflated body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.crdt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Builds documents whose CRDT tree is as deep as they are long and checks
+ * that nothing walks that depth on the call stack
+ */
+class CRDTDocumentStressTest {
+    private static final int LENGTH = 1_000_000;
+
+    // Far below what one frame per character would need
+    private static final long STACK_SIZE = 256 * 1024;
+
+    @Test
+    void alternatingSitesBuildAMillionCharacterChain() throws Throwable {
+        runWithSmallStack(() -> {
+            CRDTDocument first = new CRDTDocument(1);
+            CRDTDocument second = new CRDTDocument(2);
+            CRDTDocument replay = new CRDTDocument(3);
+
+            // Alternating sites keep every character in a node of its own,
+            // each the only child of the one before
+            long[] ids = new long[LENGTH];
+            long[] parents = new long[LENGTH];
+            char[] values = new char[LENGTH];
+            long parent = CRDTId.ROOT;
+            for (int i = 0; i < LENGTH; i++) {
+                CRDTDocument author = i % 2 == 0 ? first : second;
+                CRDTDocument other = i % 2 == 0 ? second : first;
+                values[i] = (char) ('a' + i % 26);
+                ids[i] = author.insert(values[i], parent);
+                parents[i] = parent;
+                other.insertWithId(ids[i], values[i], parent);
+                parent = ids[i];
+            }
+
+            // In reverse every insert waits on its parent until the first
+            // one arrives and releases the whole chain
+            for (int i = LENGTH - 1; i >= 0; i--)
+                replay.insertWithId(ids[i], values[i], parents[i]);
+
+            String text = first.buildText();
+            assertEquals(LENGTH, text.length());
+            assertEquals(text, second.buildText());
+            assertEquals(text, replay.buildText());
+
+            for (int pos = 0; pos < LENGTH; pos += LENGTH / 1000) {
+                long id = replay.getIdByPosition(pos);
+                assertEquals(ids[pos], id);
+                assertEquals(pos, replay.getVisiblePositionByNodeID(id));
+                assertEquals(text.charAt(pos), replay.getText().charAt(pos));
+            }
+        });
+    }
+
+    @Test
+    void snapshotOfAMillionCharacterChainLoads() throws Throwable {
+        runWithSmallStack(() -> {
+            CRDTDocument first = new CRDTDocument(1);
+            CRDTDocument second = new CRDTDocument(2);
+            long parent = CRDTId.ROOT;
+            for (int i = 0; i < LENGTH; i++) {
+                CRDTDocument author = i % 2 == 0 ? first : second;
+                CRDTDocument other = i % 2 == 0 ? second : first;
+                char value = (char) ('a' + i % 26);
+                long id = author.insert(value, parent);
+                other.insertWithId(id, value, parent);
+                parent = id;
+            }
+
+            CRDTDocument joiner = new CRDTDocument(3);
+            joiner.load(first.snapshot());
+            assertEquals(first.buildText(), joiner.buildText());
+        });
+    }
+
+    private static void runWithSmallStack(Runnable body) throws Throwable {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "stress", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (failure.get() != null)
+            throw failure.get();
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.crdt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replicas driven the way the server drives them: every operation gets the
+ * next sequence number and is broadcast to all sites, echoes included
+ */
+class CRDTManagerTest {
+    private final CRDTManager server = new CRDTManager(0);
+    private long seq = 0;
+
+    @Test
+    void joinerDoesNotReuseIdsOfCollectedTombstones() {
+        CRDTManager author = new CRDTManager(1);
+        broadcast(author.createInsertOperations("abc", 0), author);
+        List<CRDTOperation> deleted = author.createInsertOperations("defgh", 3);
+        deleted.addAll(author.createDeleteOperations(3, 8));
+        broadcast(deleted, author);
+        stable(author);
+        assertEquals("abc", server.buildText());
+
+        // The joiner's first id must come after the collected ones
+        CRDTManager joiner = new CRDTManager(2);
+        joiner.loadSnapshot(server.snapshot());
+        broadcast(List.of(joiner.createInsertOperation('x', 3)), joiner, author);
+
+        assertEquals("abcx", joiner.buildText());
+        assertEquals("abcx", server.buildText());
+        assertEquals("abcx", author.buildText());
+    }
+
+    @Test
+    void snapshotSentInPartsLoadsLikeTheWhole() {
+        CRDTManager author = new CRDTManager(1);
+        CRDTManager other = new CRDTManager(2);
+        broadcast(author.createInsertOperations("x".repeat(1000), 0), author, other);
+        broadcast(other.createInsertOperations("y".repeat(300), 500), author, other);
+        broadcast(author.createDeleteOperations(100, 400), author, other);
+
+        CRDTSnapshot whole = server.snapshot();
+        List<CRDTSnapshot> parts = whole.split(128);
+        CRDTSnapshot assembled = parts.get(0);
+        for (CRDTSnapshot part : parts.subList(1, parts.size()))
+            assembled.append(part);
+        assertEquals(false, assembled.more);
+
+        CRDTManager joiner = new CRDTManager(3);
+        joiner.loadSnapshot(assembled);
+        assertEquals(server.buildText(), joiner.buildText());
+
+        // The joiner's replica takes the same operations as everyone else's
+        broadcast(joiner.createInsertOperations("zz", 600), author, other, joiner);
+        broadcast(other.createDeleteOperations(550, 650), author, other, joiner);
+        assertEquals(server.buildText(), joiner.buildText());
+        assertEquals(server.buildText(), author.buildText());
+    }
+
+    @Test
+    void resyncRevivesWhatTheSnapshotHasNotSeenRevived() {
+        CRDTManager author = new CRDTManager(1);
+        broadcast(author.createInsertOperations("abc", 0), author);
+        CRDTOperation delete = author.createDeleteOperation(1);
+        broadcast(List.of(delete), author);
+
+        // Undo of the delete, its echo dropped along with the send queue
+        CRDTOperation revival = new CRDTOperation(1, OperationType.INSERT, delete.character, delete.position,
+                delete.id, delete.parentId);
+        author.applyOperation(revival);
+        CRDTOperation typed = author.createInsertOperation('d', 3);
+        author.resync(server.snapshot(), List.of(revival, typed));
+        assertEquals("abcd", author.buildText());
+
+        broadcast(List.of(revival, typed), author);
+        assertEquals("abcd", server.buildText());
+        assertEquals("abcd", author.buildText());
+    }
+
+    @Test
+    void resyncKeepsDeletesOfIncludedInserts() {
+        CRDTManager author = new CRDTManager(1);
+        CRDTManager other = new CRDTManager(2);
+        broadcast(author.createInsertOperations("ab", 0), author, other);
+
+        // The insert is sequenced but its echo never reaches the author,
+        // and another site deletes it before the snapshot is taken
+        CRDTOperation typed = author.createInsertOperation('x', 2);
+        broadcast(List.of(typed), other);
+        broadcast(List.of(other.createDeleteOperation(2)), other);
+
+        author.resync(server.snapshot(), List.of(typed));
+        assertEquals("ab", server.buildText());
+        assertEquals("ab", author.buildText());
+    }
+
+    @Test
+    void concurrentEditsConvergeAndReload() {
+        Random random = new Random(42);
+        CRDTManager[] sites = { new CRDTManager(1), new CRDTManager(2), new CRDTManager(3) };
+        for (int round = 0; round < 300; round++) {
+            // Every site edits its own replica before seeing the others' edits,
+            // so inserts at the same place become siblings in every order
+            List<CRDTOperation> ops = new ArrayList<>();
+            for (CRDTManager site : sites) {
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    int size = site.buildText().length();
+                    if (size > 0 && random.nextInt(3) == 0) {
+                        int start = random.nextInt(size);
+                        ops.addAll(site.createDeleteOperations(start, Math.min(size, start + 1 + random.nextInt(3))));
+                    } else {
+                        int position = random.nextInt(size + 1);
+                        ops.addAll(site.createInsertOperations(String.valueOf((char) ('a' + round % 26)).repeat(
+                                1 + random.nextInt(3)), position));
+                    }
+                }
+            }
+            broadcast(ops, sites);
+            if (round % 50 == 49)
+                stable(sites);
+
+            for (CRDTManager site : sites)
+                assertEquals(server.buildText(), site.buildText(), "round " + round);
+        }
+
+        CRDTManager joiner = new CRDTManager(4);
+        joiner.loadSnapshot(server.snapshot());
+        assertEquals(server.buildText(), joiner.buildText());
+        broadcast(joiner.createInsertOperations("end", 0), joiner, sites[0]);
+        assertEquals(server.buildText(), joiner.buildText());
+        assertEquals(server.buildText(), sites[0].buildText());
+    }
+
+    private void broadcast(List<CRDTOperation> ops, CRDTManager... sites) {
+        List<CRDTOperation> sequenced = new ArrayList<>();
+        for (CRDTOperation op : ops) {
+            op.seq = ++seq;
+            server.applyOperation(op);
+            sequenced.add(op);
+        }
+        for (CRDTManager site : sites)
+            site.applyOperations(sequenced);
+    }
+
+    private void stable(CRDTManager... sites) {
+        CRDTOperation stable = new CRDTOperation(0, OperationType.STABLE, '\0', 0, 0, 0);
+        stable.seq = seq;
+        server.applyOperation(stable);
+        for (CRDTManager site : sites)
+            site.applyOperations(List.of(stable));
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.crdt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Types a document with the cursor jumping to a random place every few
+ * characters, so many nodes get siblings, then times how long another replica
+ * takes to integrate the operations and to read the whole text back. The
+ * figures are printed rather than asserted.
+ */
+class SiblingOrderBenchmarkTest {
+    private static final int LENGTH = 100_000;
+    private static final int READS = 50;
+    // Operations a replica integrates in one go, as a client drains them
+    private static final int BATCH = 100;
+
+    @Test
+    void cursorJumps() {
+        // The first run only warms up the JIT
+        run(50);
+        System.out.println(run(50));
+        System.out.println(run(2));
+    }
+
+    private static String run(int charsPerJump) {
+        Random random = new Random(charsPerJump);
+        CRDTManager author = new CRDTManager(1);
+        List<CRDTOperation> ops = new ArrayList<>();
+        int cursor = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            if (random.nextInt(charsPerJump) == 0)
+                cursor = random.nextInt(i + 1);
+            CRDTOperation op = author.createInsertOperation((char) ('a' + i % 26), cursor++);
+            op.seq = i + 1;
+            ops.add(op);
+        }
+
+        CRDTManager replica = new CRDTManager(2);
+        long start = System.nanoTime();
+        for (int i = 0; i < LENGTH; i += BATCH)
+            replica.applyOperations(ops.subList(i, i + BATCH));
+        long integrate = System.nanoTime() - start;
+
+        String text = null;
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++)
+            text = new StringBuilder(replica.getText()).toString();
+        long read = (System.nanoTime() - start) / READS;
+
+        assertEquals(author.buildText(), text);
+        return String.format("cursor jump every ~%d chars: integrate %.1f ms, read text %.1f ms",
+                charsPerJump, integrate / 1e6, read / 1e6);
+    }
+}
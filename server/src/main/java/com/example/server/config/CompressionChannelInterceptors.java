@@ -0,0 +1,152 @@
+package com.example.server.config;
+
+import com.example.crdt.CRDTManager;
+import com.example.messaging.BodyCompression;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Compresses large STOMP bodies. A deflated body is sent as
+ * application/octet-stream, so it travels in a binary frame, and its real
+ * content type moves to the deflated-content-type header.
+ *
+ * Clients ask for compressed bodies by sending accept-encoding: deflate on
+ * CONNECT; SockJS clients never do, as SockJS only carries text frames.
+ * Bodies under the threshold, such as single keystrokes, are never
+ * compressed, so typing latency is unaffected.
+ */
+@Component
+public class CompressionChannelInterceptors {
+    private final int threshold;
+    private final int maxInflatedBytes;
+
+    // Sessions that accept deflated bodies
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+    // A broadcast passes through the outbound channel once per subscriber
+    // with the same payload, so the last result is reused
+    private final Object cacheLock = new Object();
+    private byte[] lastPayload;
+    private byte[] lastDeflated;
+
+    public CompressionChannelInterceptors(@Value("${editor.websocket.compression-threshold:1024}") int threshold) {
+        this.threshold = threshold;
+        this.maxInflatedBytes = CRDTManager.MAX_MESSAGE_BYTES;
+    }
+
+    /**
+     * Tracks which sessions accept compression, and inflates the bodies
+     * clients deflated before they reach the message converters
+     */
+    public ChannelInterceptor inbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+                if (accessor == null) {
+                    return message;
+                }
+
+                SimpMessageType type = accessor.getMessageType();
+                String sessionId = accessor.getSessionId();
+                if (type == SimpMessageType.CONNECT) {
+                    String accepted = accessor.getFirstNativeHeader(BodyCompression.ACCEPT_ENCODING);
+                    if (sessionId != null && accepted != null && accepted.contains("deflate")) {
+                        sessions.add(sessionId);
+                    }
+                }
+
+                String contentType = accessor.getFirstNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE);
+                if (contentType == null || !(message.getPayload() instanceof byte[] payload)) {
+                    return message;
+                }
+
+                StompHeaderAccessor inflated = StompHeaderAccessor.wrap(message);
+                inflated.removeNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE);
+                inflated.setContentType(MimeType.valueOf(contentType));
+                return MessageBuilder.createMessage(inflate(payload), inflated.getMessageHeaders());
+            }
+        };
+    }
+
+    /**
+     * Forgets a closed session, whether it sent DISCONNECT or just dropped
+     */
+    public void removeSession(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * Deflates bodies of at least the threshold for sessions that accept it
+     */
+    public ChannelInterceptor outbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                return compress(message);
+            }
+        };
+    }
+
+    /**
+     * Deflates one message the way the outbound channel would, for messages
+     * built after it has run, such as the ones a send queue makes up
+     */
+    public Message<?> compress(Message<?> message) {
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (type != SimpMessageType.MESSAGE || sessionId == null || !sessions.contains(sessionId)
+                || !(message.getPayload() instanceof byte[] payload) || payload.length < threshold) {
+            return message;
+        }
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        MimeType contentType = accessor.getContentType();
+        byte[] deflated = deflate(payload);
+        if (contentType == null || deflated.length >= payload.length) {
+            return message;
+        }
+
+        accessor.setNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE, contentType.toString());
+        accessor.setContentType(MimeTypeUtils.APPLICATION_OCTET_STREAM);
+        return MessageBuilder.createMessage(deflated, accessor.getMessageHeaders());
+    }
+
+    private byte[] deflate(byte[] payload) {
+        synchronized (cacheLock) {
+            if (payload == lastPayload) {
+                return lastDeflated;
+            }
+        }
+
+        byte[] deflated = BodyCompression.deflate(payload);
+        synchronized (cacheLock) {
+            lastPayload = payload;
+            lastDeflated = deflated;
+        }
+        return deflated;
+    }
+
+    private byte[] inflate(byte[] payload) {
+        try {
+            return BodyCompression.inflate(payload, maxInflatedBytes);
+        } catch (IllegalArgumentException e) {
+            throw new MessageDeliveryException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.server.config;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+/**
+ * Gives every WebSocket connection its own principal. Clients are not
+ * authenticated, so without one a user destination could not be resolved;
+ * with it, convertAndSendToUser reaches exactly one connection.
+ */
+public class SessionPrincipalHandshakeHandler extends DefaultHandshakeHandler {
+
+    @Override
+    protected Principal determineUser(ServerHttpRequest request, WebSocketHandler wsHandler,
+            Map<String, Object> attributes) {
+        String name = UUID.randomUUID().toString();
+        return () -> name;
+    }
+}
@@ -0,0 +1,537 @@
+package com.example.server.config;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTSnapshot;
+import com.example.server.service.DocumentService;
+
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+
+/**
+ * Gives every WebSocket session its own bounded queue of outgoing messages,
+ * written to the socket by one sender per session. A stalled connection only
+ * fills its own queue instead of buffering without limit or holding up the
+ * delivery to other sessions; when the queue is full the slow-consumer
+ * policy decides what to give up.
+ */
+@Component
+public class SessionSendQueues {
+    /**
+     * Marks a message that only carries the line positions that changed since
+     * the last presence tick, so a full queue may replace it
+     */
+    public static final String POSITIONS_DELTA_HEADER = "positions-delta";
+
+    public enum SlowConsumerPolicy {
+        /**
+         * Replace queued position deltas with one full set of positions per
+         * document, then disconnect if that is not enough
+         */
+        DROP_PRESENCE,
+        /**
+         * Replace queued position deltas, then replace the queued operations
+         * with a snapshot of the document, then disconnect
+         */
+        RESYNC,
+        /** Disconnect right away */
+        DISCONNECT
+    }
+
+    private static final String DOCUMENT_TOPIC = "/topic/document/";
+    private static final String PRESENCE_SUFFIX = "/users";
+    private static final String SNAPSHOT_DESTINATION = "/user/queue/snapshot";
+
+    private final DocumentService documentService;
+    private final CompressionChannelInterceptors compression;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ExecutorService senders;
+    private final MappingJackson2MessageConverter jsonConverter = new MappingJackson2MessageConverter();
+
+    private final Map<String, SessionQueue> queues = new ConcurrentHashMap<>();
+
+    // Writes messages to the sessions, set once the WebSocket handler exists
+    private volatile MessageHandler socketHandler;
+
+    @Autowired
+    public SessionSendQueues(DocumentService documentService, CompressionChannelInterceptors compression,
+            @Value("${editor.websocket.send-queue-capacity:1024}") int capacity,
+            @Value("${editor.websocket.slow-consumer-policy:RESYNC}") SlowConsumerPolicy policy,
+            @Value("${editor.virtual-threads:false}") boolean virtualThreads) {
+        this.documentService = documentService;
+        this.compression = compression;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.senders = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-sender-", 0).factory())
+                : Executors.newCachedThreadPool(Thread.ofPlatform().name("session-sender-", 0).daemon(true).factory());
+    }
+
+    /**
+     * Number of messages waiting to be written to each session
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        queues.forEach((sessionId, queue) -> {
+            queue.lock.lock();
+            try {
+                depths.put(sessionId, queue.messages.size());
+            } finally {
+                queue.lock.unlock();
+            }
+        });
+        return depths;
+    }
+
+    /**
+     * Keeps hold of the WebSocket handler that writes messages to sessions,
+     * and the sessions themselves so they can be disconnected
+     */
+    public WebSocketHandlerDecoratorFactory decoratorFactory() {
+        return handler -> {
+            if (handler instanceof MessageHandler) {
+                socketHandler = (MessageHandler) handler;
+            }
+            return new WebSocketHandlerDecorator(handler) {
+                @Override
+                public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                    queues.put(session.getId(), new SessionQueue(session));
+                    super.afterConnectionEstablished(session);
+                }
+
+                @Override
+                public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus)
+                        throws Exception {
+                    SessionQueue queue = queues.remove(session.getId());
+                    if (queue != null) {
+                        queue.lock.lock();
+                        try {
+                            queue.closed = true;
+                            queue.messages.clear();
+                            queue.held.clear();
+                        } finally {
+                            queue.lock.unlock();
+                        }
+                    }
+                    super.afterConnectionClosed(session, closeStatus);
+                }
+            };
+        };
+    }
+
+    /**
+     * Remembers each session's snapshot subscription, which a resync is
+     * delivered on
+     */
+    public ChannelInterceptor inbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+                String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+                if (type == SimpMessageType.SUBSCRIBE && SNAPSHOT_DESTINATION.equals(destination)) {
+                    SessionQueue queue = queues.get(SimpMessageHeaderAccessor.getSessionId(message.getHeaders()));
+                    if (queue != null) {
+                        queue.snapshotSubscription = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+                    }
+                }
+                return message;
+            }
+        };
+    }
+
+    /**
+     * Takes the messages bound for sessions off the outbound channel and
+     * queues them for the session's sender instead
+     */
+    public ChannelInterceptor outbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+                String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+                SessionQueue queue = sessionId != null ? queues.get(sessionId) : null;
+                if (type != SimpMessageType.MESSAGE || queue == null || socketHandler == null) {
+                    return message;
+                }
+
+                enqueue(queue, message);
+                return null;
+            }
+        };
+    }
+
+    @PreDestroy
+    public void close() {
+        senders.shutdownNow();
+    }
+
+    private void enqueue(SessionQueue queue, Message<?> message) {
+        queue.lock.lock();
+        try {
+            if (queue.closed) {
+                return;
+            }
+
+            // Operations on a document being resynced wait for its snapshot
+            String documentId = operationDocument(message);
+            if (documentId != null && queue.resyncing.contains(documentId)) {
+                queue.held.add(message);
+                if (queue.held.size() > capacity) {
+                    disconnect(queue);
+                }
+                return;
+            }
+
+            if (queue.messages.size() < capacity) {
+                queue.messages.add(message);
+            } else if (!makeRoom(queue, message)) {
+                disconnect(queue);
+                return;
+            }
+
+            if (!queue.sending) {
+                queue.sending = true;
+                senders.execute(() -> send(queue));
+            }
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the slow-consumer policy to a full queue. The positions and
+     * snapshots that replace what is dropped are only noted here; a sender
+     * builds them once the queue is unlocked, see {@link #repair}.
+     *
+     * @return Whether the session can stay connected
+     */
+    private boolean makeRoom(SessionQueue queue, Message<?> message) {
+        if (policy == SlowConsumerPolicy.DISCONNECT) {
+            return false;
+        }
+
+        // A delta only holds the users who moved, so the dropped ones are
+        // made up for by each document's full positions as they are then.
+        // Joins and leaves are kept: deltas never add or remove anyone.
+        int refreshes = queue.stalePositions.size();
+        for (Iterator<Message<?>> it = queue.messages.iterator(); it.hasNext();) {
+            Message<?> queued = it.next();
+            if (isPositionsDelta(queued)) {
+                queue.stalePositions.putIfAbsent(topicDocument(queued), queued);
+                it.remove();
+            }
+        }
+
+        boolean delta = isPositionsDelta(message);
+        if (delta) {
+            queue.stalePositions.putIfAbsent(topicDocument(message), message);
+        }
+        if (queue.stalePositions.size() > refreshes) {
+            scheduleRepair(queue);
+        }
+
+        int pending = queue.messages.size() + queue.stalePositions.size();
+        if (delta ? pending <= capacity : pending < capacity) {
+            if (!delta) {
+                queue.messages.add(message);
+            }
+            return true;
+        }
+        if (policy == SlowConsumerPolicy.DROP_PRESENCE || queue.snapshotSubscription == null) {
+            return false;
+        }
+
+        // Every queued operation was broadcast, so committed, before a
+        // snapshot taken later, and one snapshot per document replaces them.
+        // Operations broadcast meanwhile are held back until it is queued,
+        // and the client skips those it already covers.
+        Set<String> documentIds = new LinkedHashSet<>();
+        for (Iterator<Message<?>> it = queue.messages.iterator(); it.hasNext();) {
+            String documentId = operationDocument(it.next());
+            if (documentId != null) {
+                documentIds.add(documentId);
+                it.remove();
+            }
+        }
+
+        String documentId = delta ? null : operationDocument(message);
+        if (documentId != null) {
+            documentIds.add(documentId);
+        } else if (!delta) {
+            queue.messages.add(message);
+        }
+
+        queue.resyncing.addAll(documentIds);
+        scheduleRepair(queue);
+        return queue.messages.size() + queue.stalePositions.size() + queue.resyncing.size() <= capacity;
+    }
+
+    /**
+     * Has a sender build the positions and snapshots a full queue is owed,
+     * unless one is already on it. Called with the queue locked.
+     */
+    private void scheduleRepair(SessionQueue queue) {
+        if (!queue.repairing) {
+            queue.repairing = true;
+            senders.execute(() -> repair(queue));
+        }
+    }
+
+    /**
+     * Builds the full positions and snapshots noted by {@link #makeRoom}
+     * without holding the queue's lock, so neither the lane broadcasting to
+     * the session nor its sender waits on the document while they are made.
+     * Operations on a resynced document are held until its snapshot is
+     * queued, so none can reach the client ahead of the snapshot.
+     */
+    private void repair(SessionQueue queue) {
+        while (true) {
+            Map<String, Message<?>> stale;
+            Set<String> documentIds;
+            queue.lock.lock();
+            try {
+                if (queue.closed || (queue.stalePositions.isEmpty() && queue.resyncing.isEmpty())) {
+                    queue.repairing = false;
+                    return;
+                }
+                stale = new LinkedHashMap<>(queue.stalePositions);
+                queue.stalePositions.clear();
+                documentIds = new LinkedHashSet<>(queue.resyncing);
+            } finally {
+                queue.lock.unlock();
+            }
+
+            List<Message<?>> positions = new ArrayList<>();
+            for (Message<?> delta : stale.values()) {
+                Message<?> message = positionsMessage(delta);
+                if (message != null) {
+                    positions.add(compression.compress(message));
+                }
+            }
+            Map<String, List<Message<?>>> snapshots = new LinkedHashMap<>();
+            for (String documentId : documentIds) {
+                snapshots.put(documentId, snapshotMessages(queue, documentId));
+            }
+
+            queue.lock.lock();
+            try {
+                if (queue.closed) {
+                    queue.repairing = false;
+                    return;
+                }
+                queue.messages.addAll(positions);
+                for (Map.Entry<String, List<Message<?>>> snapshot : snapshots.entrySet()) {
+                    if (snapshot.getValue() == null) {
+                        queue.repairing = false;
+                        disconnect(queue);
+                        return;
+                    }
+                    queue.messages.addAll(snapshot.getValue());
+                    queue.resyncing.remove(snapshot.getKey());
+                }
+                for (Iterator<Message<?>> it = queue.held.iterator(); it.hasNext();) {
+                    Message<?> held = it.next();
+                    if (!queue.resyncing.contains(operationDocument(held))) {
+                        queue.messages.add(held);
+                        it.remove();
+                    }
+                }
+
+                if (queue.messages.size() > capacity) {
+                    queue.repairing = false;
+                    disconnect(queue);
+                    return;
+                }
+                if (!queue.sending && !queue.messages.isEmpty()) {
+                    queue.sending = true;
+                    senders.execute(() -> send(queue));
+                }
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The parts of a document snapshot addressed to the session, or null if
+     * it cannot be sent one
+     */
+    private List<Message<?>> snapshotMessages(SessionQueue queue, String documentId) {
+        // Waits for the operations in the snapshot to be committed; the ones
+        // broadcast meanwhile are held until it is queued
+        CRDTSnapshot snapshot;
+        try {
+            snapshot = documentService.getCommittedSnapshot(documentId).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | RuntimeException e) {
+            return null;
+        }
+
+        System.out.println("RESYNCING SESSION " + queue.session.getId() + " AT SEQ " + snapshot.seq);
+        List<Message<?>> messages = new ArrayList<>();
+        for (CRDTSnapshot part : snapshot.split(CRDTManager.MAX_RUN_LENGTH)) {
+            SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            headers.setSessionId(queue.session.getId());
+            headers.setSubscriptionId(queue.snapshotSubscription);
+            headers.setDestination(SNAPSHOT_DESTINATION);
+            headers.setLeaveMutable(true);
+            messages.add(compression.compress(jsonConverter.toMessage(part, headers.getMessageHeaders())));
+        }
+        return messages;
+    }
+
+    /**
+     * Every user's line position in the document, addressed like the given
+     * delta, or null if the document is gone
+     */
+    private Message<?> positionsMessage(Message<?> delta) {
+        Map<String, Integer> positions;
+        try {
+            positions = documentService.getUserLinePositions(topicDocument(delta));
+        } catch (Exception e) {
+            return null;
+        }
+
+        Map<String, Object> positionsUpdate = new HashMap<>();
+        positionsUpdate.put("type", "USER_POSITIONS");
+        positionsUpdate.put("positions", positions);
+
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(SimpMessageHeaderAccessor.getSessionId(delta.getHeaders()));
+        headers.setSubscriptionId(SimpMessageHeaderAccessor.getSubscriptionId(delta.getHeaders()));
+        headers.setDestination(SimpMessageHeaderAccessor.getDestination(delta.getHeaders()));
+        headers.setLeaveMutable(true);
+        return jsonConverter.toMessage(positionsUpdate, headers.getMessageHeaders());
+    }
+
+    private void disconnect(SessionQueue queue) {
+        System.out.println("DISCONNECTING SLOW SESSION " + queue.session.getId() + " WITH "
+                + queue.messages.size() + " QUEUED MESSAGES");
+        queue.closed = true;
+        queue.messages.clear();
+        queue.held.clear();
+
+        // Closing may block on the stalled socket as well
+        senders.execute(() -> {
+            try {
+                queue.session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (IOException e) {
+                System.out.println("Error closing slow session: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Writes the session's queued messages in order until none are left
+     */
+    private void send(SessionQueue queue) {
+        while (true) {
+            Message<?> message;
+            queue.lock.lock();
+            try {
+                message = queue.closed ? null : queue.messages.poll();
+                if (message == null) {
+                    queue.sending = false;
+                    return;
+                }
+            } finally {
+                queue.lock.unlock();
+            }
+
+            try {
+                socketHandler.handleMessage(message);
+            } catch (RuntimeException e) {
+                System.out.println("Error sending to session " + queue.session.getId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isPresence(Message<?> message) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        return destination != null && destination.startsWith(DOCUMENT_TOPIC) && destination.endsWith(PRESENCE_SUFFIX);
+    }
+
+    private static boolean isPositionsDelta(Message<?> message) {
+        return isPresence(message)
+                && SimpMessageHeaderAccessor.wrap(message).getFirstNativeHeader(POSITIONS_DELTA_HEADER) != null;
+    }
+
+    /**
+     * The document whose operations topic, JSON or binary, a message was
+     * published on, or null for anything else
+     */
+    private static String operationDocument(Message<?> message) {
+        return isPresence(message) ? null : topicDocument(message);
+    }
+
+    /**
+     * The document whose topic a message was published on, or null if it
+     * was not published on one
+     */
+    private static String topicDocument(Message<?> message) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !destination.startsWith(DOCUMENT_TOPIC)) {
+            return null;
+        }
+
+        String rest = destination.substring(DOCUMENT_TOPIC.length());
+        int slash = rest.indexOf('/');
+        return slash < 0 ? rest : rest.substring(0, slash);
+    }
+
+    private static class SessionQueue {
+        final WebSocketSession session;
+        // Not a monitor, so a sender that blocks on it does not pin a
+        // virtual thread to its carrier
+        final ReentrantLock lock = new ReentrantLock();
+        final Deque<Message<?>> messages = new ArrayDeque<>();
+        // Owed by the slow-consumer policy: a full set of positions for each
+        // document whose deltas were dropped, and a snapshot of each document
+        // whose operations were, with the operations broadcast since
+        final Map<String, Message<?>> stalePositions = new LinkedHashMap<>();
+        final Set<String> resyncing = new LinkedHashSet<>();
+        final List<Message<?>> held = new ArrayList<>();
+        boolean repairing = false;
+        boolean sending = false;
+        boolean closed = false;
+        volatile String snapshotSubscription;
+
+        SessionQueue(WebSocketSession session) {
+            this.session = session;
+        }
+    }
+}
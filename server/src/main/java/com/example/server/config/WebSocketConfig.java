@@ -1,25 +1,115 @@
 package com.example.server.config;
 
+import com.example.crdt.CRDTManager;
+import com.example.messaging.BinaryOperationMessageConverter;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+    // Large enough for a full INSERT_RUN frame (CRDTManager.MAX_RUN_LENGTH
+    // characters) after JSON and SockJS escaping; clients accept the same
+    private static final int MAX_MESSAGE_BYTES = CRDTManager.MAX_MESSAGE_BYTES;
+
+    private final CompressionChannelInterceptors compression;
+    private final SessionSendQueues sendQueues;
+    private final boolean virtualThreads;
+
+    public WebSocketConfig(CompressionChannelInterceptors compression, SessionSendQueues sendQueues,
+            @Value("${editor.virtual-threads:false}") boolean virtualThreads) {
+        this.compression = compression;
+        this.sendQueues = sendQueues;
+        this.virtualThreads = virtualThreads;
+    }
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic");
+        // /queue carries messages for a single session, e.g. the join snapshot
+        // and errors, sent with convertAndSendToUser to the session's principal
+        config.enableSimpleBroker("/topic", "/queue");
         config.setApplicationDestinationPrefixes("/app");
+
+        // Replicas rely on seeing operations in the order the server sequenced them
+        config.setPreservePublishOrder(true);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
+        // Plain WebSocket, without SockJS framing; clients that cannot open
+        // one fall back to the SockJS endpoint
+        registry.addEndpoint("/collaborative-editor/ws")
+                .setAllowedOriginPatterns("*")
+                .setHandshakeHandler(new SessionPrincipalHandshakeHandler());
+
         registry.addEndpoint("/collaborative-editor")
                 .setAllowedOriginPatterns("*")
+                .setHandshakeHandler(new SessionPrincipalHandshakeHandler())
                 .withSockJS();
+
+        // Handle each session's messages in the order they were sent
+        registry.setPreserveReceiveOrder(true);
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setMessageSizeLimit(MAX_MESSAGE_BYTES);
+        registration.addDecoratorFactory(sendQueues.decoratorFactory());
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(compression.inbound(), sendQueues.inbound());
+        if (virtualThreads) {
+            registration.executor(new VirtualThreadTaskExecutor("stomp-inbound-"));
+        }
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // Bodies are compressed before they wait in a session's send queue
+        registration.interceptors(compression.outbound(), sendQueues.outbound());
+        // A write to a stalled socket then parks a virtual thread instead of
+        // holding one of the pool's few platform threads
+        if (virtualThreads) {
+            registration.executor(new VirtualThreadTaskExecutor("stomp-outbound-"));
+        }
+    }
+
+    // Published for a DISCONNECT frame and for a connection that just dropped
+    @EventListener
+    public void onSessionDisconnect(SessionDisconnectEvent event) {
+        compression.removeSession(event.getSessionId());
+    }
+
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(MAX_MESSAGE_BYTES);
+        container.setMaxBinaryMessageBufferSize(MAX_MESSAGE_BYTES);
+        return container;
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Binary operations for clients that send or subscribe to them; the
+        // default converters, JSON included, still handle everything else
+        messageConverters.add(new BinaryOperationMessageConverter());
+        return true;
     }
 }
\ No newline at end of file
@@ -38,6 +38,11 @@ public class DocumentController {
         return ResponseEntity.ok(document);
     }
 
+    @GetMapping("/{documentId}/content")
+    public ResponseEntity<String> getDocumentContent(@PathVariable String documentId) {
+        return ResponseEntity.ok(documentService.getContent(documentId));
+    }
+
     @PostMapping("/access")
     public ResponseEntity<Map<String, Object>> accessDocument(
             @RequestParam String userId,
@@ -0,0 +1,28 @@
+package com.example.server.controller;
+
+import com.example.server.config.SessionSendQueues;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/sessions")
+@CrossOrigin(origins = "*")
+public class SessionController {
+    private final SessionSendQueues sessionSendQueues;
+
+    @Autowired
+    public SessionController(SessionSendQueues sessionSendQueues) {
+        this.sessionSendQueues = sessionSendQueues;
+    }
+
+    /**
+     * Messages waiting to be sent to each WebSocket session
+     */
+    @GetMapping("/queue-depths")
+    public ResponseEntity<Map<String, Integer>> getQueueDepths() {
+        return ResponseEntity.ok(sessionSendQueues.getQueueDepths());
+    }
+}
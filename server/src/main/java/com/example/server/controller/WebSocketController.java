@@ -1,52 +1,111 @@
 package com.example.server.controller;
 
-import com.example.server.model.CRDTOperation;
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
+import com.example.crdt.OperationBatch;
+import com.example.crdt.OperationType;
+import com.example.messaging.BinaryOperationMessageConverter;
+import com.example.server.config.SessionSendQueues;
 import com.example.server.model.Document;
+import com.example.server.service.DocumentExecutor;
 import com.example.server.service.DocumentService;
 
+import java.security.Principal;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Controller;
 
 @Controller
 public class WebSocketController {
+    // Operations are published twice: as JSON on the document topic, and in
+    // the binary codec on this sub-topic for clients whose transport carries
+    // binary frames
+    private static final String BINARY_SUFFIX = "/binary";
+    // Lets a slow session's send queue replace the delta with full positions
+    private static final Map<String, Object> POSITIONS_DELTA_HEADERS = Map.of(
+            SessionSendQueues.POSITIONS_DELTA_HEADER, "true");
 
     private final SimpMessagingTemplate messagingTemplate;
     private final DocumentService documentService;
+    private final DocumentExecutor documentExecutor;
 
     @Autowired
-    public WebSocketController(SimpMessagingTemplate messagingTemplate, DocumentService documentService) {
+    public WebSocketController(SimpMessagingTemplate messagingTemplate, DocumentService documentService,
+            DocumentExecutor documentExecutor) {
         this.messagingTemplate = messagingTemplate;
         this.documentService = documentService;
+        this.documentExecutor = documentExecutor;
     }
 
-    @MessageMapping("/operations")
-    public void handleOperation(@Payload CRDTOperation operation) {
-        // Verify user has access to the document
-        String documentId = operation.documentID;
-        String userId = operation.userID;
+    // Handlers hand their work to the document's lane, so each document's
+    // messages are processed one at a time in arrival order
 
+    @MessageMapping("/operations/{documentId}")
+    public void handleOperation(@DestinationVariable String documentId, @Payload CRDTOperation operation) {
+        documentExecutor.execute(documentId, () -> acceptOperation(documentId, operation));
+    }
+
+    /**
+     * Operations a client coalesced into one frame; each is sequenced and
+     * broadcast as if it had arrived on its own
+     */
+    @MessageMapping("/operations/{documentId}/batch")
+    public void handleOperationBatch(@DestinationVariable String documentId, @Payload OperationBatch batch) {
+        documentExecutor.execute(documentId, () -> {
+            for (CRDTOperation operation : batch.operations) {
+                acceptOperation(documentId, operation);
+            }
+        });
+    }
+
+    private void acceptOperation(String documentId, CRDTOperation operation) {
         // Get the document and check if user is connected
         try {
             documentService.getDocument(documentId);
 
             System.out.println("RECEIVED OPERATION: " + operation);
-            documentService.addOperation(operation, documentId);
-
+            if (!isWellFormed(operation)) {
+                return;
+            }
             // Broadcast the operation to all clients subscribed to the document
-            messagingTemplate.convertAndSend("/topic/document/" + documentId, operation);
+            // once it is on disk
+            documentService.addOperation(operation, documentId,
+                    onLane(documentId, () -> broadcastOperation(documentId, operation)));
         } catch (Exception e) {
-            System.out.println("Error handling operation " + operation + " from " + userId);
+            System.out.println("Error handling operation " + operation + " from site " + operation.site);
         }
     }
 
+    @MessageMapping("/ack/{documentId}")
+    public void handleAcknowledgement(@DestinationVariable String documentId, @Payload Map<String, Object> ack) {
+        String userId = (String) ack.get("userId");
+
+        documentExecutor.execute(documentId, () -> {
+            try {
+                long seq = ((Number) ack.get("seq")).longValue();
+                long stableSeq = documentService.acknowledge(documentId, userId, seq);
+                if (stableSeq > 0) {
+                    broadcastStableSeq(documentId, stableSeq);
+                }
+            } catch (Exception e) {
+                System.out.println("Error handling acknowledgement from " + userId + ": " + e.getMessage());
+            }
+        });
+    }
+
     @MessageMapping("/join")
-    public void joinDocument(@Payload Map<String, String> joinRequest) {
+    public void joinDocument(@Payload Map<String, String> joinRequest, Principal session) {
         String documentId = joinRequest.get("documentId");
         String userId = joinRequest.get("userId");
         String accessCode = joinRequest.get("accessCode");
@@ -60,6 +119,12 @@ public class WebSocketController {
             }
         }
 
+        int initialLinePosition = linePosition;
+        documentExecutor.execute(documentId,
+                () -> join(documentId, userId, accessCode, initialLinePosition, session.getName()));
+    }
+
+    private void join(String documentId, String userId, String accessCode, int linePosition, String session) {
         try {
             // Validate access
             Document document = documentService.getDocument(documentId);
@@ -78,29 +143,28 @@ public class WebSocketController {
             joinNotification.put("isEditor", isEditor);
             joinNotification.put("linePosition", linePosition);
 
-            for (CRDTOperation op : documentService.getOperations(documentId)) {
-                op.forID = userId;
-                messagingTemplate.convertAndSend("/topic/document/" + documentId, op);
-                op.forID = null;
-            }
+            // The joiner is already subscribed to the operations topic, so it
+            // gets everything sequenced after the snapshot from there
+            sendSnapshot(session, documentId);
 
             messagingTemplate.convertAndSend("/topic/document/" + documentId + "/users", joinNotification);
 
             broadcastUserPositions(documentId);
 
         } catch (Exception e) {
-            // Handle error
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", e.getMessage());
-            messagingTemplate.convertAndSendToUser(userId, "/topic/errors", errorResponse);
+            sendError(session, e.getMessage());
         }
     }
 
     @MessageMapping("/leave")
-    public void leaveDocument(@Payload Map<String, String> leaveRequest) {
+    public void leaveDocument(@Payload Map<String, String> leaveRequest, Principal session) {
         String documentId = leaveRequest.get("documentId");
         String userId = leaveRequest.get("userId");
 
+        documentExecutor.execute(documentId, () -> leave(documentId, userId, session.getName()));
+    }
+
+    private void leave(String documentId, String userId, String session) {
         try {
             // Remove user from connected users
             documentService.removeConnectedUser(documentId, userId);
@@ -110,21 +174,22 @@ public class WebSocketController {
             leaveNotification.put("type", "USER_LEFT");
             leaveNotification.put("userId", userId);
 
+            // Clients drop the user's position when they see this
             messagingTemplate.convertAndSend("/topic/document/" + documentId + "/users", leaveNotification);
 
-            // After user leaves, broadcast updated positions
-            broadcastUserPositions(documentId);
+            // The leaving user no longer holds back tombstone collection
+            long stableSeq = documentService.advanceStableSeq(documentId);
+            if (stableSeq > 0) {
+                broadcastStableSeq(documentId, stableSeq);
+            }
 
         } catch (Exception e) {
-            // Handle error
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", e.getMessage());
-            messagingTemplate.convertAndSendToUser(userId, "/topic/errors", errorResponse);
+            sendError(session, e.getMessage());
         }
     }
 
     @MessageMapping("/line-position")
-    public void handleLinePosition(@Payload Map<String, Object> lineUpdate) {
+    public void handleLinePosition(@Payload Map<String, Object> lineUpdate, Principal session) {
         String documentId = (String) lineUpdate.get("documentId");
         String userId = (String) lineUpdate.get("userId");
 
@@ -141,23 +206,42 @@ public class WebSocketController {
             }
         }
 
+        int newLinePosition = linePosition;
+        documentExecutor.execute(documentId,
+                () -> updateLinePosition(documentId, userId, newLinePosition, session.getName()));
+    }
+
+    private void updateLinePosition(String documentId, String userId, int linePosition, String session) {
         try {
             // Check if user is connected to this document
             if (documentService.isUserConnected(documentId, userId)) {
-                // Update user's line position
+                // Update user's line position; it goes out with the next
+                // presence flush rather than right away
                 documentService.updateUserLinePosition(documentId, userId, linePosition);
-
-                // Broadcast updated positions to all users
-                broadcastUserPositions(documentId);
             }
         } catch (Exception e) {
             System.out.println("Error handling line position update from " + userId + ": " + e.getMessage());
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", e.getMessage());
-            messagingTemplate.convertAndSendToUser(userId, "/topic/errors", errorResponse);
+            sendError(session, e.getMessage());
         }
     }
 
+    /**
+     * Sends each document's line positions that changed since the last tick,
+     * at most one message per document per tick. Runs on the scheduler
+     * rather than a document lane, so presence never queues ahead of edits.
+     */
+    @Scheduled(fixedRateString = "${editor.presence.tick-ms:100}")
+    public void flushLinePositions() {
+        documentService.drainChangedLinePositions().forEach((documentId, positions) -> {
+            Map<String, Object> positionsUpdate = new HashMap<>();
+            positionsUpdate.put("type", "USER_POSITIONS_CHANGED");
+            positionsUpdate.put("positions", positions);
+
+            messagingTemplate.convertAndSend("/topic/document/" + documentId + "/users", positionsUpdate,
+                    POSITIONS_DELTA_HEADERS);
+        });
+    }
+
     /**
      * Broadcasts the current line positions of all connected users to everyone
      * viewing the document
@@ -182,4 +266,96 @@ public class WebSocketController {
             System.out.println("Error broadcasting user positions: " + e.getMessage());
         }
     }
+
+    /**
+     * Sends the current state of the document to a single session, split into
+     * parts that each fit in a frame the client accepts. It is sent from the
+     * lane once the operations in it are committed, ahead of the broadcasts
+     * of any sequenced after it.
+     * 
+     * @param session    The joining session's principal name
+     * @param documentId The document ID
+     */
+    private void sendSnapshot(String session, String documentId) {
+        documentService.getCommittedSnapshot(documentId).thenAccept(snapshot -> documentExecutor.execute(documentId,
+                () -> {
+                    for (CRDTSnapshot part : snapshot.split(CRDTManager.MAX_RUN_LENGTH)) {
+                        messagingTemplate.convertAndSendToUser(session, "/queue/snapshot", part);
+                    }
+                }));
+    }
+
+    /**
+     * Reports a failed request back to the session that made it
+     * 
+     * @param session The session's principal name
+     * @param message The error message
+     */
+    private void sendError(String session, String message) {
+        Map<String, String> errorResponse = new HashMap<>();
+        errorResponse.put("error", message);
+        messagingTemplate.convertAndSendToUser(session, "/queue/errors", errorResponse);
+    }
+
+    /**
+     * Tells every replica that all operations up to stableSeq have been
+     * integrated everywhere. It travels on the operations topic behind every
+     * operation sequenced so far, which may still be waiting for their flush:
+     * a replica that saw the notice first could collect a tombstone that one
+     * of them is inserted after.
+     * 
+     * @param documentId The document ID
+     * @param stableSeq  The stable sequence number
+     */
+    private void broadcastStableSeq(String documentId, long stableSeq) {
+        CRDTOperation notice = new CRDTOperation();
+        notice.type = OperationType.STABLE;
+        notice.seq = stableSeq;
+        documentService.afterCommitted(documentId,
+                onLane(documentId, () -> broadcastOperation(documentId, notice)));
+    }
+
+    /**
+     * Wraps a commit callback so that it only queues its work on the
+     * document's lane. Callbacks are released one at a time on the single
+     * commit thread; the lanes spread the broadcasts of different documents
+     * over all cores, and each lane still runs them in release order.
+     */
+    private Runnable onLane(String documentId, Runnable task) {
+        return () -> documentExecutor.execute(documentId, task);
+    }
+
+    /**
+     * Range operations carry their characters; anything else a client sends
+     * must be a single character insert or delete
+     */
+    private static boolean isWellFormed(CRDTOperation operation) {
+        if (operation.type == OperationType.INSERT_RUN || operation.type == OperationType.DELETE_RANGE) {
+            return operation.text != null && !operation.text.isEmpty();
+        }
+        return operation.type == OperationType.INSERT || operation.type == OperationType.DELETE;
+    }
+
+    /**
+     * Publishes an operation to the document's subscribers in both formats
+     * 
+     * @param documentId The document ID
+     * @param operation  The operation
+     */
+    private void broadcastOperation(String documentId, CRDTOperation operation) {
+        String destination = "/topic/document/" + documentId;
+        messagingTemplate.convertAndSend(destination, operation);
+        messagingTemplate.convertAndSend(destination + BINARY_SUFFIX, operation, binaryHeaders());
+    }
+
+    /**
+     * Headers that select the binary codec. A plain map would only become
+     * STOMP native headers, which the converters never look at.
+     */
+    private static MessageHeaders binaryHeaders() {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(BinaryOperationMessageConverter.CONTENT_TYPE);
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
 }
\ No newline at end of file
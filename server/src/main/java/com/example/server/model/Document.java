@@ -1,11 +1,21 @@
 package com.example.server.model;
 
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
+import com.example.crdt.OperationType;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import lombok.Data;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Data
 public class Document {
+    // The server never authors operations; site 0 is only used by the CRDT root
+    private static final int SERVER_SITE = 0;
+
     private String id;
     private LocalDateTime createdAt;
     private String editorCode;
@@ -13,20 +23,107 @@ public class Document {
     private Set<String> connectedEditors;
     private Set<String> connectedViewers;
 
+    // Operations since the checkpoint; joiners get a snapshot of the replica instead
+    @JsonIgnore
     private List<CRDTOperation> operations;
+    private long lastSeq;
+
+    // Replica state that replaces the operations compacted so far
+    @JsonIgnore
+    private CRDTSnapshot checkpoint;
+
+    // Live replica of the document, kept in step with every accepted operation
+    @JsonIgnore
+    private final CRDTManager replica = new CRDTManager(SERVER_SITE);
 
     public Document() {
         this.id = UUID.randomUUID().toString();
         this.createdAt = LocalDateTime.now();
         this.editorCode = generateCode("ED");
         this.viewerCode = generateCode("VW");
-        this.connectedEditors = new HashSet<>();
-        this.connectedViewers = new HashSet<>();
+        // Changed on the document's lane but read by REST requests
+        this.connectedEditors = ConcurrentHashMap.newKeySet();
+        this.connectedViewers = ConcurrentHashMap.newKeySet();
         this.operations = new LinkedList<>();
     }
 
-    public void addOperation(CRDTOperation op) {
+    public synchronized void addOperation(CRDTOperation op) {
+        op.seq = ++lastSeq;
         operations.add(op);
+        replica.applyOperation(op);
+    }
+
+    /**
+     * Rebuilds a recovered document from its last checkpoint and the logged
+     * operations that came after it
+     */
+    public synchronized void restore(CRDTSnapshot checkpoint, List<CRDTOperation> tail) {
+        if (checkpoint != null) {
+            replica.loadSnapshot(checkpoint);
+            this.checkpoint = checkpoint;
+            lastSeq = checkpoint.seq;
+        }
+
+        for (CRDTOperation op : tail) {
+            replica.applyOperation(op);
+            operations.add(op);
+            lastSeq = op.seq;
+        }
+    }
+
+    /**
+     * Collects the replica's tombstones once every client has integrated the
+     * operations up to stableSeq
+     */
+    public synchronized void markStable(long stableSeq) {
+        CRDTOperation notice = new CRDTOperation();
+        notice.type = OperationType.STABLE;
+        notice.seq = stableSeq;
+        replica.applyOperation(notice);
+    }
+
+    /**
+     * Replaces the operation log with a checkpoint of the replica. Deletes
+     * whose tombstones the replica has already collected are folded away
+     * together with their inserts, so the checkpoint tracks the live text.
+     * 
+     * @return The number of operations folded into the checkpoint
+     */
+    public synchronized int compact() {
+        int folded = operations.size();
+        if (folded == 0) {
+            return 0;
+        }
+
+        checkpoint = replica.snapshot();
+        operations.clear();
+        return folded;
+    }
+
+    /**
+     * Number of operations since the checkpoint
+     */
+    @JsonIgnore
+    public synchronized int getOperationCount() {
+        return operations.size();
+    }
+
+    /**
+     * Snapshot of the replica, consistent with lastSeq. It may hold
+     * operations not yet committed; clients are sent
+     * DocumentService.getCommittedSnapshot instead.
+     */
+    @JsonIgnore
+    public synchronized CRDTSnapshot getSnapshot() {
+        return replica.snapshot();
+    }
+
+    /**
+     * Current text of the document
+     */
+    @JsonIgnore
+    public synchronized String getContent() {
+        return replica.buildText();
     }
 
     private String generateCode(String prefix) {
@@ -1,6 +0,0 @@
-package com.example.server.model;
-
-public enum OperationType {
-    INSERT,
-    DELETE
-}
@@ -6,6 +6,7 @@ import java.util.UUID;
 @Data
 public class User {
     private String userId;
+    private int siteId;
     private String currentDocumentId;
 
     public User() {
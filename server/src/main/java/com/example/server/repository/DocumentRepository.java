@@ -1,9 +1,11 @@
 package com.example.server.repository;
 
-import com.example.server.model.CRDTOperation;
+import com.example.crdt.CRDTOperation;
 import com.example.server.model.Document;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -14,14 +16,58 @@ public class DocumentRepository {
     private final Map<String, Document> documents = new ConcurrentHashMap<>();
     private final Map<String, String> editorCodeToDocId = new ConcurrentHashMap<>();
     private final Map<String, String> viewerCodeToDocId = new ConcurrentHashMap<>();
+    private final OperationLogStore operationLogStore;
+    private final GroupCommit groupCommit;
 
-    public void addOperation(CRDTOperation operation, String id) {
+    @Autowired
+    public DocumentRepository(OperationLogStore operationLogStore, GroupCommit groupCommit) {
+        this.operationLogStore = operationLogStore;
+        this.groupCommit = groupCommit;
+        for (Document document : operationLogStore.getRecoveredDocuments()) {
+            index(document);
+        }
+    }
+
+    /**
+     * Sequences and logs an operation
+     *
+     * @param onCommitted Runs once the operation is durable on disk
+     */
+    public void addOperation(CRDTOperation operation, String id, Runnable onCommitted) {
         Document doc = documents.get(id);
         if (doc == null) {
             return;
         }
 
-        doc.addOperation(operation);
+        // The log and the commit queue have to see operations in the order
+        // their seq was assigned
+        synchronized (doc) {
+            doc.addOperation(operation);
+            int bytes = operationLogStore.append(id, operation);
+            groupCommit.submit(id, bytes, onCommitted);
+        }
+    }
+
+    /**
+     * Queues a callback behind every operation of the document logged so far,
+     * so it runs only after their own callbacks have
+     */
+    public void afterCommitted(String id, Runnable callback) {
+        Document doc = documents.get(id);
+        if (doc == null) {
+            return;
+        }
+
+        synchronized (doc) {
+            groupCommit.submit(id, 0, callback);
+        }
+    }
+
+    /**
+     * Persists the document's latest checkpoint, see {@link Document#compact()}
+     */
+    public void saveCheckpoint(Document document) {
+        operationLogStore.saveCheckpoint(document);
     }
 
     public List<CRDTOperation> getOperations(String id) {
@@ -33,12 +79,17 @@ public class DocumentRepository {
     }
 
     public Document save(Document document) {
-        documents.put(document.getId(), document);
-        editorCodeToDocId.put(document.getEditorCode(), document.getId());
-        viewerCodeToDocId.put(document.getViewerCode(), document.getId());
+        if (!documents.containsKey(document.getId())) {
+            operationLogStore.create(document);
+        }
+        index(document);
         return document;
     }
 
+    public Collection<Document> findAll() {
+        return documents.values();
+    }
+
     public Optional<Document> findById(String id) {
         return Optional.ofNullable(documents.get(id));
     }
@@ -52,4 +103,10 @@ public class DocumentRepository {
         String docId = viewerCodeToDocId.get(code);
         return docId != null ? Optional.ofNullable(documents.get(docId)) : Optional.empty();
     }
+
+    private void index(Document document) {
+        documents.put(document.getId(), document);
+        editorCodeToDocId.put(document.getEditorCode(), document.getId());
+        viewerCodeToDocId.put(document.getViewerCode(), document.getId());
+    }
 }
@@ -0,0 +1,128 @@
+package com.example.server.repository;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes logged operations durable in groups. Appends from every document
+ * collect for up to a commit window, or until enough bytes are pending, and
+ * are then flushed together; only after that are their callbacks released, in
+ * the order the operations were appended. Callbacks run one after another on
+ * the commit thread, so they should hand any real work off.
+ */
+@Component
+public class GroupCommit {
+    private final OperationLogStore operationLogStore;
+    private final long windowNanos;
+    private final long maxBytes;
+
+    private final Object lock = new Object();
+    private List<Runnable> pending = new ArrayList<>();
+    private Set<String> dirty = new LinkedHashSet<>();
+    private long pendingBytes = 0;
+    private long firstPendingAt = 0;
+    private boolean running = true;
+
+    private final Thread committer;
+
+    @Autowired
+    public GroupCommit(OperationLogStore operationLogStore,
+            @Value("${editor.log.commit-window-ms:2}") long windowMs,
+            @Value("${editor.log.commit-max-bytes:65536}") long maxBytes) {
+        this.operationLogStore = operationLogStore;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxBytes = maxBytes;
+
+        this.committer = new Thread(this::run, "log-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Queues a callback to run once everything appended to the document's log
+     * so far is on disk. Must be called right after the append, under the
+     * same lock, so callbacks keep the order of the log; a callback with
+     * nothing appended passes 0 bytes.
+     */
+    public void submit(String documentId, int bytes, Runnable onCommitted) {
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                firstPendingAt = System.nanoTime();
+            }
+            pending.add(onCommitted);
+            dirty.add(documentId);
+            pendingBytes += bytes;
+
+            if (pending.size() == 1 || pendingBytes >= maxBytes) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        committer.join();
+    }
+
+    private void run() {
+        while (true) {
+            List<Runnable> batch;
+            Set<String> documents;
+
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && running) {
+                        lock.wait();
+                    }
+                    // Give other appends the rest of the window to join this flush
+                    long remaining;
+                    while (running && pendingBytes < maxBytes
+                            && (remaining = firstPendingAt + windowNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                documents = dirty;
+                pending = new ArrayList<>();
+                dirty = new LinkedHashSet<>();
+                pendingBytes = 0;
+            }
+
+            try {
+                operationLogStore.force(documents);
+            } catch (UncheckedIOException e) {
+                // Holding the operations back would leave their authors out of
+                // step with everyone else, so they are still released
+                System.out.println("Error flushing operation logs: " + e.getMessage());
+            }
+
+            for (Runnable callback : batch) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Error releasing committed operation: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.server.repository;
+
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.OperationType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only operation log of one document, stored as fixed-size
+ * memory-mapped segment files named after the first sequence number they hold.
+ *
+ * Every record is [payload length][CRC32C of the payload][payload]. A record
+ * with length 0 marks the end of the written part of a segment; a record that
+ * is cut short or fails its checksum marks a torn tail. A segment grows past
+ * the configured size when a single record needs more room.
+ *
+ * Appends come from one thread at a time, under the document's lock; the
+ * group commit thread may force the log concurrently. A segment that fills up
+ * is left for that thread to flush and close, so an append never waits for
+ * the disk while it holds the document's lock.
+ */
+class OperationLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_BYTES = 8;
+    // type, site, id, character, position, parentId, seq
+    private static final int FIXED_BYTES = 1 + 4 + 8 + 2 + 4 + 8 + 8;
+    // followed, for range operations, by the number of characters and the characters
+    private static final int TEXT_HEADER_BYTES = 4;
+
+    private static final OperationType[] TYPES = OperationType.values();
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final CRC32C crc = new CRC32C();
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    // Second view of the active segment for checksumming without allocating
+    private ByteBuffer crcView;
+
+    // Segments rolled over since the last force, oldest first
+    private List<RetiredSegment> retired = new ArrayList<>();
+
+    OperationLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(segmentBytes, HEADER_BYTES + FIXED_BYTES);
+    }
+
+    /**
+     * Reads every intact record and leaves the log ready for appending after
+     * the last one. A torn or corrupt tail is zeroed and any later segments
+     * are deleted.
+     *
+     * @return The recovered operations, in sequence order
+     */
+    List<CRDTOperation> recover() throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(OperationLog::isSegment)
+                    .forEach(path -> segments.put(firstSeq(path), path));
+        }
+
+        List<CRDTOperation> operations = new ArrayList<>();
+        long lastSeq = 0;
+        boolean torn = false;
+
+        for (Map.Entry<Long, Path> entry : new ArrayList<>(segments.entrySet())) {
+            Path path = entry.getValue();
+            if (torn) {
+                System.out.println("DISCARDING SEGMENT AFTER TORN LOG TAIL: " + path);
+                segments.remove(entry.getKey());
+                Files.delete(path);
+                continue;
+            }
+
+            openSegment(path, (int) Files.size(path));
+            while (segment.remaining() >= HEADER_BYTES) {
+                int start = segment.position();
+                int length = segment.getInt(start);
+                if (length == 0) {
+                    break;
+                }
+
+                CRDTOperation op = length >= FIXED_BYTES && length <= segment.limit() - start - HEADER_BYTES
+                        && checksum(start + HEADER_BYTES, length) == segment.getInt(start + 4)
+                                ? readPayload(start + HEADER_BYTES, length)
+                                : null;
+                if (op == null || op.seq <= lastSeq) {
+                    System.out.println("REPAIRING TORN LOG TAIL IN " + path + " AT BYTE " + start);
+                    zeroFrom(start);
+                    torn = true;
+                    break;
+                }
+
+                operations.add(op);
+                lastSeq = op.seq;
+                segment.position(start + HEADER_BYTES + length);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Appends an operation to the active segment, rolling over when it is full
+     *
+     * @return The size of the record
+     */
+    synchronized int append(CRDTOperation op) {
+        int length = FIXED_BYTES + (op.text != null ? TEXT_HEADER_BYTES + 2 * op.text.length() : 0);
+        int recordBytes = HEADER_BYTES + length;
+        try {
+            if (segment == null || segment.remaining() < recordBytes) {
+                roll(op.seq, recordBytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll operation log segment in " + directory, e);
+        }
+
+        int start = segment.position();
+        segment.position(start + HEADER_BYTES);
+        segment.put((byte) op.type.ordinal());
+        segment.putInt(op.site);
+        segment.putLong(op.id);
+        segment.putChar(op.character);
+        segment.putInt(op.position);
+        segment.putLong(op.parentId);
+        segment.putLong(op.seq);
+        if (op.text != null) {
+            segment.putInt(op.text.length());
+            for (int i = 0; i < op.text.length(); i++) {
+                segment.putChar(op.text.charAt(i));
+            }
+        }
+
+        segment.putInt(start + 4, checksum(start + HEADER_BYTES, length));
+        // The length goes last so a half-written record reads as the end of the log
+        segment.putInt(start, length);
+        return recordBytes;
+    }
+
+    /**
+     * Flushes the segments rolled over since the last call and closes them,
+     * then flushes the active segment
+     */
+    void force() {
+        MappedByteBuffer active;
+        List<RetiredSegment> full;
+        synchronized (this) {
+            active = segment;
+            full = retired;
+            retired = new ArrayList<>();
+        }
+        // Appends may continue while the pages are being written
+        for (RetiredSegment old : full) {
+            old.segment.force();
+            try {
+                old.channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to close operation log segment in " + directory, e);
+            }
+        }
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    /**
+     * Deletes the segments that only hold operations up to the given sequence
+     * number, e.g. after they have been folded into a checkpoint
+     */
+    synchronized void dropThrough(long seq) throws IOException {
+        // A segment is covered when the next one starts at or before seq + 1
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> first = segments.firstEntry();
+            long nextFirstSeq = segments.higherKey(first.getKey());
+            if (nextFirstSeq - 1 > seq) {
+                break;
+            }
+            segments.pollFirstEntry();
+            Files.deleteIfExists(first.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        if (channel != null) {
+            channel.close();
+        }
+        channel = null;
+        segment = null;
+        crcView = null;
+    }
+
+    private void roll(long firstSeq, int recordBytes) throws IOException {
+        // The next group commit flushes it, before any of its operations are
+        // released
+        if (segment != null) {
+            retired.add(new RetiredSegment(channel, segment));
+        }
+        channel = null;
+        segment = null;
+        crcView = null;
+
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        openSegment(path, Math.max(segmentBytes, recordBytes));
+        segments.put(firstSeq, path);
+    }
+
+    private void openSegment(Path path, int size) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        crcView = segment.duplicate();
+    }
+
+    private int checksum(int start, int length) {
+        crcView.limit(start + length).position(start);
+        crc.reset();
+        crc.update(crcView);
+        return (int) crc.getValue();
+    }
+
+    private CRDTOperation readPayload(int offset, int length) {
+        int type = segment.get(offset);
+        if (type < 0 || type >= TYPES.length) {
+            return null;
+        }
+
+        CRDTOperation op = new CRDTOperation();
+        op.type = TYPES[type];
+        op.site = segment.getInt(offset + 1);
+        op.id = segment.getLong(offset + 5);
+        op.character = segment.getChar(offset + 13);
+        op.position = segment.getInt(offset + 15);
+        op.parentId = segment.getLong(offset + 19);
+        op.seq = segment.getLong(offset + 27);
+
+        if (length > FIXED_BYTES) {
+            int count = segment.getInt(offset + FIXED_BYTES);
+            int textOffset = offset + FIXED_BYTES + TEXT_HEADER_BYTES;
+            if (length != FIXED_BYTES + TEXT_HEADER_BYTES + 2 * count) {
+                return null;
+            }
+
+            char[] text = new char[count];
+            for (int i = 0; i < count; i++) {
+                text[i] = segment.getChar(textOffset + 2 * i);
+            }
+            op.text = new String(text);
+        }
+        return op;
+    }
+
+    private void zeroFrom(int start) {
+        for (int i = start; i < segment.limit(); i++) {
+            segment.put(i, (byte) 0);
+        }
+        segment.force();
+        segment.position(start);
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static long firstSeq(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static class RetiredSegment {
+        final FileChannel channel;
+        final MappedByteBuffer segment;
+
+        RetiredSegment(FileChannel channel, MappedByteBuffer segment) {
+            this.channel = channel;
+            this.segment = segment;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.server.repository;
+
+import com.example.crdt.CRDTId;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
+import com.example.server.model.Document;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps each document on disk as a directory holding its metadata, its latest
+ * checkpoint and an {@link OperationLog} of the operations after it. Documents
+ * are recovered from there when the server starts.
+ */
+@Component
+public class OperationLogStore {
+    private static final String METADATA_FILE = "document.properties";
+    private static final String CHECKPOINT_FILE = "checkpoint.bin";
+    private static final int CHECKPOINT_MAGIC = 0x43484b31;
+
+    private final Path root;
+    private final int segmentBytes;
+    private final Map<String, OperationLog> logs = new ConcurrentHashMap<>();
+    private final List<Document> recovered = new ArrayList<>();
+    private int maxSiteId = 0;
+
+    public OperationLogStore(@Value("${editor.log.directory:data/documents}") String directory,
+            @Value("${editor.log.segment-bytes:16777216}") int segmentBytes) throws IOException {
+        this.root = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        recover();
+    }
+
+    /**
+     * Documents found on disk at startup, with their replicas rebuilt
+     */
+    public List<Document> getRecoveredDocuments() {
+        return recovered;
+    }
+
+    /**
+     * Highest site id used by any recovered operation, so new users never
+     * reuse a site that already authored characters
+     */
+    public int getMaxSiteId() {
+        return maxSiteId;
+    }
+
+    /**
+     * Creates the on-disk state of a new document
+     */
+    public void create(Document document) {
+        Path directory = root.resolve(document.getId());
+        try {
+            Files.createDirectories(directory);
+            writeMetadata(directory, document);
+            OperationLog log = new OperationLog(directory, segmentBytes);
+            log.recover();
+            logs.put(document.getId(), log);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create log of document " + document.getId(), e);
+        }
+    }
+
+    /**
+     * Appends an accepted operation. Must be called under the document's lock
+     * so records are written in sequence order.
+     *
+     * @return The number of bytes written
+     */
+    public int append(String documentId, CRDTOperation op) {
+        OperationLog log = logs.get(documentId);
+        return log != null ? log.append(op) : 0;
+    }
+
+    /**
+     * Flushes the logs of the given documents to disk
+     */
+    public void force(Collection<String> documentIds) {
+        for (String documentId : documentIds) {
+            OperationLog log = logs.get(documentId);
+            if (log != null) {
+                log.force();
+            }
+        }
+    }
+
+    /**
+     * Writes the document's checkpoint and drops the log segments it covers
+     */
+    public void saveCheckpoint(Document document) {
+        OperationLog log = logs.get(document.getId());
+        CRDTSnapshot checkpoint;
+        synchronized (document) {
+            checkpoint = document.getCheckpoint();
+        }
+        if (log == null || checkpoint == null) {
+            return;
+        }
+
+        Path directory = root.resolve(document.getId());
+        try {
+            writeCheckpoint(directory, checkpoint);
+            synchronized (document) {
+                log.dropThrough(checkpoint.seq);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to checkpoint document " + document.getId(), e);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        for (OperationLog log : logs.values()) {
+            log.close();
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(root);
+        List<Path> directories;
+        try (Stream<Path> files = Files.list(root)) {
+            directories = files.filter(path -> Files.isRegularFile(path.resolve(METADATA_FILE))).toList();
+        }
+
+        for (Path directory : directories) {
+            Document document = readMetadata(directory);
+            CRDTSnapshot checkpoint = readCheckpoint(directory);
+            long checkpointSeq = checkpoint != null ? checkpoint.seq : 0;
+
+            OperationLog log = new OperationLog(directory, segmentBytes);
+            List<CRDTOperation> tail = new ArrayList<>();
+            for (CRDTOperation op : log.recover()) {
+                if (op.seq > checkpointSeq) {
+                    tail.add(op);
+                }
+                maxSiteId = Math.max(maxSiteId, op.site);
+            }
+            if (checkpoint != null) {
+                for (CRDTSnapshot.Run run : checkpoint.runs) {
+                    maxSiteId = Math.max(maxSiteId, CRDTId.site(run.id));
+                }
+            }
+
+            document.restore(checkpoint, tail);
+            logs.put(document.getId(), log);
+            recovered.add(document);
+            System.out.println("RECOVERED DOCUMENT " + document.getId() + " AT SEQ " + document.getLastSeq());
+        }
+    }
+
+    private static void writeMetadata(Path directory, Document document) throws IOException {
+        Properties metadata = new Properties();
+        metadata.setProperty("id", document.getId());
+        metadata.setProperty("createdAt", document.getCreatedAt().toString());
+        metadata.setProperty("editorCode", document.getEditorCode());
+        metadata.setProperty("viewerCode", document.getViewerCode());
+
+        Path temp = directory.resolve(METADATA_FILE + ".tmp");
+        try (var out = Files.newOutputStream(temp)) {
+            metadata.store(out, null);
+        }
+        replace(temp, directory.resolve(METADATA_FILE));
+    }
+
+    private static Document readMetadata(Path directory) throws IOException {
+        Properties metadata = new Properties();
+        try (var in = Files.newInputStream(directory.resolve(METADATA_FILE))) {
+            metadata.load(in);
+        }
+
+        Document document = new Document();
+        document.setId(metadata.getProperty("id"));
+        document.setCreatedAt(LocalDateTime.parse(metadata.getProperty("createdAt")));
+        document.setEditorCode(metadata.getProperty("editorCode"));
+        document.setViewerCode(metadata.getProperty("viewerCode"));
+        return document;
+    }
+
+    private static void writeCheckpoint(Path directory, CRDTSnapshot checkpoint) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32C());
+        try (DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(checkpoint.seq);
+            out.writeInt(checkpoint.collectedClock);
+            out.writeInt(checkpoint.runs.size());
+            for (CRDTSnapshot.Run run : checkpoint.runs) {
+                out.writeLong(run.id);
+                out.writeLong(run.parentId);
+                out.writeBoolean(run.deleted);
+                out.writeInt(run.text.length());
+                out.writeChars(run.text);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+        }
+        replace(temp, directory.resolve(CHECKPOINT_FILE));
+    }
+
+    private static CRDTSnapshot readCheckpoint(Path directory) throws IOException {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path)), new CRC32C());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+
+            CRDTSnapshot checkpoint = new CRDTSnapshot();
+            checkpoint.seq = in.readLong();
+            checkpoint.collectedClock = in.readInt();
+            int count = in.readInt();
+            checkpoint.runs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                CRDTSnapshot.Run run = new CRDTSnapshot.Run();
+                run.id = in.readLong();
+                run.parentId = in.readLong();
+                run.deleted = in.readBoolean();
+                char[] text = new char[in.readInt()];
+                for (int j = 0; j < text.length; j++) {
+                    text[j] = in.readChar();
+                }
+                run.text = new String(text);
+                checkpoint.runs.add(run);
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupt checkpoint: " + path);
+            }
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Syncs a fully written temporary file and moves it over the target, so
+     * a crash leaves either the old or the new version
+     */
+    private static void replace(Path temp, Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.server.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each document's messages on a single-threaded lane chosen by document
+ * id. Work for one document happens one task at a time in submission order,
+ * while different documents spread over all lanes. Lanes may run on virtual
+ * threads, so a lane blocked on I/O does not hold a platform thread. On
+ * Java 21 a lane is pinned while it holds a document's monitor; the only file
+ * work done there is mapping the next log segment when one fills up.
+ */
+@Component
+public class DocumentExecutor {
+    private final ExecutorService[] lanes;
+
+    public DocumentExecutor(@Value("${editor.document-lanes:0}") int laneCount,
+            @Value("${editor.virtual-threads:false}") boolean virtualThreads) {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "document-lane-" + i;
+            ThreadFactory factory = virtualThreads
+                    ? Thread.ofVirtual().name(name).factory()
+                    : Thread.ofPlatform().name(name).daemon(true).factory();
+            lanes[i] = Executors.newSingleThreadExecutor(factory);
+        }
+    }
+
+    /**
+     * Queues a task on the document's lane
+     */
+    public void execute(String documentId, Runnable task) {
+        lanes[Math.floorMod(Objects.hashCode(documentId), lanes.length)].execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Error in document " + documentId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
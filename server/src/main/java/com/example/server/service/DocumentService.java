@@ -1,12 +1,16 @@
 package com.example.server.service;
 
-import com.example.server.model.CRDTOperation;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.CRDTSnapshot;
 import com.example.server.model.Document;
 import com.example.server.repository.DocumentRepository;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,19 +22,65 @@ public class DocumentService {
 
     private final Map<String, Map<String, Integer>> userLinePositions = new ConcurrentHashMap<>();
 
+    // Line positions changed since the last presence flush; only replaced or
+    // removed as a whole through the outer map, so no change is lost to a flush
+    private final Map<String, Map<String, Integer>> changedLinePositions = new ConcurrentHashMap<>();
+
+    // Highest operation sequence number each connected user has integrated
+    private final Map<String, Map<String, Long>> acknowledgedSeqs = new ConcurrentHashMap<>();
+    private final Map<String, Long> stableSeqs = new ConcurrentHashMap<>();
+
     @Autowired
     public DocumentService(DocumentRepository documentRepository) {
         this.documentRepository = documentRepository;
     }
 
-    public void addOperation(CRDTOperation operation, String id) {
-        this.documentRepository.addOperation(operation, id);
+    /**
+     * Accepts an operation into the document
+     * 
+     * @param operation   The operation
+     * @param id          The document ID
+     * @param onCommitted Runs once the operation is durable, e.g. to broadcast
+     *                    it; operations of a document are released in order
+     */
+    public void addOperation(CRDTOperation operation, String id, Runnable onCommitted) {
+        this.documentRepository.addOperation(operation, id, onCommitted);
+    }
+
+    /**
+     * Runs a callback once the operations accepted into the document so far
+     * have been released, e.g. to broadcast a notice that has to follow them
+     * 
+     * @param id       The document ID
+     * @param callback The callback
+     */
+    public void afterCommitted(String id, Runnable callback) {
+        this.documentRepository.afterCommitted(id, callback);
+    }
+
+    /**
+     * Snapshot of the document as it is now, completed once every operation
+     * in it has been released. The live replica runs ahead of the log, so a
+     * client handed it straight away could hold operations a crash loses.
+     * 
+     * @param id The document ID
+     * @return The snapshot, completed on the commit thread
+     */
+    public CompletableFuture<CRDTSnapshot> getCommittedSnapshot(String id) {
+        CRDTSnapshot snapshot = getDocument(id).getSnapshot();
+        CompletableFuture<CRDTSnapshot> committed = new CompletableFuture<>();
+        afterCommitted(id, () -> committed.complete(snapshot));
+        return committed;
     }
 
     public List<CRDTOperation> getOperations(String id) {
         return this.documentRepository.getOperations(id);
     }
 
+    public String getContent(String documentId) {
+        return getDocument(documentId).getContent();
+    }
+
     public Document createDocument() {
         Document document = new Document();
         return documentRepository.save(document);
@@ -60,8 +110,35 @@ public class DocumentService {
         getDocument(documentId);
 
         // Update line position
-        userLinePositions.computeIfAbsent(documentId, k -> new ConcurrentHashMap<>())
+        Integer previous = userLinePositions.computeIfAbsent(documentId, k -> new ConcurrentHashMap<>())
                 .put(userId, linePosition);
+
+        // Mark it for the next presence flush, replacing any earlier change
+        if (previous == null || previous != linePosition) {
+            changedLinePositions.compute(documentId, (k, changes) -> {
+                Map<String, Integer> updated = changes != null ? changes : new HashMap<>();
+                updated.put(userId, linePosition);
+                return updated;
+            });
+        }
+    }
+
+    /**
+     * Takes the line positions that changed since the previous call. A user
+     * who moved several times in between only appears with the latest line,
+     * and documents where nobody moved are left out.
+     * 
+     * @return Map of document IDs to the changed positions of their users
+     */
+    public Map<String, Map<String, Integer>> drainChangedLinePositions() {
+        Map<String, Map<String, Integer>> drained = new HashMap<>();
+        for (String documentId : changedLinePositions.keySet()) {
+            Map<String, Integer> changes = changedLinePositions.remove(documentId);
+            if (changes != null) {
+                drained.put(documentId, changes);
+            }
+        }
+        return drained;
     }
 
     /**
@@ -81,6 +158,55 @@ public class DocumentService {
         return new HashMap<>(positions);
     }
 
+    /**
+     * Records that a user has integrated every operation up to a sequence number
+     * 
+     * @param documentId The document ID
+     * @param userId     The user ID
+     * @param seq        The highest sequence number the user has integrated
+     * @return The new stable sequence number if it advanced, otherwise -1
+     */
+    public long acknowledge(String documentId, String userId, long seq) {
+        getDocument(documentId);
+
+        acknowledgedSeqs.computeIfAbsent(documentId, k -> new ConcurrentHashMap<>())
+                .merge(userId, seq, Math::max);
+        return advanceStableSeq(documentId);
+    }
+
+    /**
+     * Recomputes the highest sequence number that every connected user has
+     * integrated. Deletes up to that point are causally stable, so their
+     * tombstones can be collected.
+     * 
+     * @param documentId The document ID
+     * @return The new stable sequence number if it advanced, otherwise -1
+     */
+    public long advanceStableSeq(String documentId) {
+        Document document = getDocument(documentId);
+        Map<String, Long> acks = acknowledgedSeqs.getOrDefault(documentId, Map.of());
+
+        synchronized (document) {
+            Set<String> users = new HashSet<>(document.getConnectedEditors());
+            users.addAll(document.getConnectedViewers());
+            if (users.isEmpty()) {
+                return -1;
+            }
+
+            long stableSeq = Long.MAX_VALUE;
+            for (String user : users) {
+                stableSeq = Math.min(stableSeq, acks.getOrDefault(user, 0L));
+            }
+
+            if (stableSeq <= stableSeqs.getOrDefault(documentId, 0L)) {
+                return -1;
+            }
+            stableSeqs.put(documentId, stableSeq);
+            document.markStable(stableSeq);
+            return stableSeq;
+        }
+    }
+
     public void addConnectedUser(String documentId, String userId, boolean isEditor) {
         Document document = getDocument(documentId);
         if (isEditor) {
@@ -100,6 +226,14 @@ public class DocumentService {
         document.getConnectedEditors().remove(userId);
         document.getConnectedViewers().remove(userId);
         userLinePositions.get(documentId).remove(userId);
+        changedLinePositions.computeIfPresent(documentId, (k, changes) -> {
+            changes.remove(userId);
+            return changes.isEmpty() ? null : changes;
+        });
+        Map<String, Long> acks = acknowledgedSeqs.get(documentId);
+        if (acks != null) {
+            acks.remove(userId);
+        }
         documentRepository.save(document);
     }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package com.example.server.service;
+
+import com.example.server.model.Document;
+import com.example.server.repository.DocumentRepository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Periodically folds each document's operation log into a checkpoint of its
+ * replica, so memory and replay cost follow the live document rather than
+ * the total number of edits
+ */
+@Service
+public class LogCompactionService {
+    private final DocumentRepository documentRepository;
+    private final int minOperations;
+
+    @Autowired
+    public LogCompactionService(DocumentRepository documentRepository,
+            @Value("${editor.compaction.min-operations:1000}") int minOperations) {
+        this.documentRepository = documentRepository;
+        this.minOperations = minOperations;
+    }
+
+    @Scheduled(fixedDelayString = "${editor.compaction.interval-ms:30000}")
+    public void compactLogs() {
+        for (Document document : documentRepository.findAll()) {
+            if (document.getOperationCount() < minOperations) {
+                continue;
+            }
+
+            int folded = document.compact();
+            documentRepository.saveCheckpoint(document);
+            System.out.println("COMPACTED " + folded + " OPERATIONS OF DOCUMENT " + document.getId());
+        }
+    }
+}
@@ -1,21 +1,30 @@
 package com.example.server.service;
 
 import com.example.server.model.User;
+import com.example.server.repository.OperationLogStore;
 import com.example.server.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 @Service
 public class UserService {
     private final UserRepository userRepository;
 
+    // Site 0 is reserved for the CRDT root node
+    private final AtomicInteger nextSiteId;
+
     @Autowired
-    public UserService(UserRepository userRepository) {
+    public UserService(UserRepository userRepository, OperationLogStore operationLogStore) {
         this.userRepository = userRepository;
+        // Sites of recovered documents must not be handed out again
+        this.nextSiteId = new AtomicInteger(operationLogStore.getMaxSiteId() + 1);
     }
 
     public User createUser() {
         User user = new User();
+        user.setSiteId(nextSiteId.getAndIncrement());
         return userRepository.save(user);
     }
 
@@ -0,0 +1,146 @@
+package com.example.server.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.example.crdt.CRDTManager;
+import com.example.messaging.BodyCompression;
+import com.example.server.model.Document;
+import com.example.server.repository.DocumentRepository;
+import com.example.server.repository.GroupCommit;
+import com.example.server.repository.OperationLogStore;
+import com.example.server.service.DocumentService;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+/**
+ * A session whose socket stalls until its queue overflows, with the resync
+ * policy and a client that accepts deflated bodies
+ */
+class SessionSendQueuesTest {
+    private static final String SESSION = "session";
+    private static final int CAPACITY = 2;
+
+    @TempDir
+    Path logDirectory;
+
+    private OperationLogStore operationLogStore;
+    private GroupCommit groupCommit;
+    private DocumentService documentService;
+    private SessionSendQueues queues;
+
+    // Holds the socket until the queue has overflowed
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    // Messages written to the socket
+    private final BlockingQueue<Message<?>> written = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        operationLogStore = new OperationLogStore(logDirectory.toString(), 1 << 20);
+        groupCommit = new GroupCommit(operationLogStore, 2, 65536);
+        documentService = new DocumentService(new DocumentRepository(operationLogStore, groupCommit));
+
+        CompressionChannelInterceptors compression = new CompressionChannelInterceptors(64);
+        queues = new SessionSendQueues(documentService, compression, CAPACITY,
+                SessionSendQueues.SlowConsumerPolicy.RESYNC, false);
+
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(SESSION);
+        queues.decoratorFactory().decorate(new StalledSocket()).afterConnectionEstablished(session);
+
+        StompHeaderAccessor connect = StompHeaderAccessor.create(StompCommand.CONNECT);
+        connect.setSessionId(SESSION);
+        connect.setNativeHeader(BodyCompression.ACCEPT_ENCODING, "deflate");
+        compression.inbound().preSend(MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders()), null);
+
+        SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        subscribe.setSessionId(SESSION);
+        subscribe.setSubscriptionId("snapshot");
+        subscribe.setDestination("/user/queue/snapshot");
+        queues.inbound().preSend(MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders()), null);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        stalled.countDown();
+        queues.close();
+        groupCommit.close();
+        operationLogStore.close();
+    }
+
+    @Test
+    void overflowIsReplacedByDeflatedSnapshot() throws Exception {
+        Document document = documentService.createDocument();
+        CRDTManager client = new CRDTManager(1);
+        for (int i = 0; i < 200; i++) {
+            document.addOperation(client.createInsertOperation('a', i));
+        }
+
+        String topic = "/topic/document/" + document.getId();
+        // The first is taken by the stalled sender, the next two fill the
+        // queue and the last overflows it
+        for (int i = 0; i <= CAPACITY + 1; i++) {
+            queues.outbound().preSend(message(topic), null);
+        }
+        stalled.countDown();
+
+        Message<?> snapshot = null;
+        for (Message<?> message; (message = written.poll(10, TimeUnit.SECONDS)) != null;) {
+            if ("/user/queue/snapshot".equals(SimpMessageHeaderAccessor.getDestination(message.getHeaders()))) {
+                snapshot = message;
+                break;
+            }
+        }
+        assertNotNull(snapshot, "no snapshot after the queue overflowed");
+        assertEquals(MimeTypeUtils.APPLICATION_OCTET_STREAM, snapshot.getHeaders().get(MessageHeaders.CONTENT_TYPE));
+        assertEquals(MimeTypeUtils.APPLICATION_JSON_VALUE,
+                SimpMessageHeaderAccessor.wrap(snapshot).getFirstNativeHeader(BodyCompression.DEFLATED_CONTENT_TYPE));
+    }
+
+    private static Message<byte[]> message(String destination) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(SESSION);
+        headers.setSubscriptionId("operations");
+        headers.setDestination(destination);
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return MessageBuilder.createMessage("{}".getBytes(StandardCharsets.UTF_8), headers.getMessageHeaders());
+    }
+
+    /**
+     * Stands in for the STOMP handler that writes messages to the socket
+     */
+    private class StalledSocket extends AbstractWebSocketHandler implements MessageHandler {
+        @Override
+        public void handleMessage(Message<?> message) {
+            try {
+                stalled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(message);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.server.controller;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.server.service.DocumentService;
+
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+/**
+ * Compares the two STOMP endpoints for one client typing alone: the bytes of
+ * each frame that carries an operation back, and the time from sending an
+ * operation to receiving its broadcast. The figures are printed rather than
+ * asserted, apart from SockJS framing never being the smaller one.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class TransportBenchmarkTest {
+    private static final int WARMUP = 100;
+    private static final int ROUND_TRIPS = 1000;
+
+    @TempDir
+    static Path logDirectory;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("editor.log.directory", () -> logDirectory.toString());
+        // Flush as soon as an operation arrives, so the wait is the transport's
+        registry.add("editor.log.commit-window-ms", () -> 0);
+    }
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    DocumentService documentService;
+
+    @Test
+    void sockJsAndPlainWebSocket() throws Exception {
+        // The first pass of each only warms up the server, whichever runs first
+        Result plain = null;
+        Result sockJs = null;
+        for (int pass = 0; pass < 2; pass++) {
+            plain = run("plain WebSocket", "ws://localhost:" + port + "/collaborative-editor/ws",
+                    socket -> socket);
+            sockJs = run("SockJS", "http://localhost:" + port + "/collaborative-editor",
+                    socket -> new SockJsClient(List.of(new WebSocketTransport(socket))));
+        }
+        System.out.println(plain);
+        System.out.println(sockJs);
+
+        assertTrue(sockJs.bytesPerFrame >= plain.bytesPerFrame, "SockJS frames smaller than plain ones");
+    }
+
+    private Result run(String transport, String url,
+            Function<WebSocketClient, WebSocketClient> wrap) throws Exception {
+        CountingClient socket = new CountingClient();
+        WebSocketStompClient stompClient = new WebSocketStompClient(wrap.apply(socket));
+        stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+        StompSession session = stompClient.connectAsync(url, new StompSessionHandlerAdapter() {
+        }).get(10, TimeUnit.SECONDS);
+
+        String documentId = documentService.createDocument().getId();
+        BlockingQueue<CRDTOperation> received = new LinkedBlockingQueue<>();
+        session.subscribe("/topic/document/" + documentId, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return CRDTOperation.class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                received.add((CRDTOperation) payload);
+            }
+        });
+
+        CRDTManager client = new CRDTManager(1);
+        long[] nanos = new long[ROUND_TRIPS];
+        long bytesBefore = 0;
+        long framesBefore = 0;
+        for (int i = 0; i < WARMUP + ROUND_TRIPS; i++) {
+            if (i == WARMUP) {
+                bytesBefore = socket.bytes.get();
+                framesBefore = socket.frames.get();
+            }
+            CRDTOperation op = client.createInsertOperation((char) ('a' + i % 26), i);
+            long start = System.nanoTime();
+            session.send("/app/operations/" + documentId, op);
+            assertNotNull(received.poll(10, TimeUnit.SECONDS), transport + ": no broadcast for operation " + i);
+            if (i >= WARMUP) {
+                nanos[i - WARMUP] = System.nanoTime() - start;
+            }
+        }
+
+        Result result = new Result(transport, socket.bytes.get() - bytesBefore,
+                socket.frames.get() - framesBefore, nanos);
+        session.disconnect();
+        stompClient.stop();
+        return result;
+    }
+
+    /**
+     * Plain WebSocket client that counts the frames it receives and their
+     * bytes, SockJS framing included when SockJS runs over it
+     */
+    private static class CountingClient extends StandardWebSocketClient {
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong frames = new AtomicLong();
+
+        @Override
+        protected CompletableFuture<WebSocketSession> executeInternal(WebSocketHandler handler,
+                HttpHeaders headers, URI uri, List<String> protocols, List<WebSocketExtension> extensions,
+                Map<String, Object> attributes) {
+            WebSocketHandler counting = new WebSocketHandlerDecorator(handler) {
+                @Override
+                public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+                    bytes.addAndGet(message.getPayloadLength());
+                    frames.incrementAndGet();
+                    super.handleMessage(session, message);
+                }
+            };
+            return super.executeInternal(counting, headers, uri, protocols, extensions, attributes);
+        }
+    }
+
+    private static class Result {
+        final String transport;
+        final long bytesPerFrame;
+        final long[] nanos;
+
+        Result(String transport, long bytes, long frames, long[] nanos) {
+            this.transport = transport;
+            this.bytesPerFrame = frames > 0 ? bytes / frames : 0;
+            this.nanos = nanos.clone();
+            Arrays.sort(this.nanos);
+        }
+
+        double percentileMillis(double percentile) {
+            int index = Math.min(nanos.length - 1, (int) Math.ceil(percentile * nanos.length) - 1);
+            return nanos[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes a frame, round trip p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    transport, bytesPerFrame, percentileMillis(0.5), percentileMillis(0.99),
+                    nanos[nanos.length - 1] / 1e6);
+        }
+    }
+}
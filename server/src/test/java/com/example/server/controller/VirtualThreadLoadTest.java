@@ -0,0 +1,197 @@
+package com.example.server.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.server.CollaboratorServerApplication;
+import com.example.server.service.DocumentService;
+
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+/**
+ * Runs the same load against the server with editor.virtual-threads off and
+ * on: many connections spread over a few documents, one writer typing into
+ * each. Reports how many connections were opened and the delivery latency
+ * from sending an operation to each subscriber receiving it. The figures are
+ * printed rather than asserted; the test only checks that every connection
+ * opened and every broadcast arrived.
+ */
+class VirtualThreadLoadTest {
+    private static final int DOCUMENTS = 10;
+    // Each connection holds Tomcat's text and binary message buffers, sized
+    // for the largest frame, about 3 MiB between them
+    private static final int CONNECTIONS_PER_DOCUMENT = 20;
+    private static final int OPERATIONS_PER_DOCUMENT = 100;
+    private static final long TYPING_INTERVAL_MS = 50;
+
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void pooledAndVirtualThreads() throws Exception {
+        // A first run only warms up this JVM, whichever mode it uses
+        run(false, "warmup");
+        Result pooled = run(false, "pooled");
+        Result virtual = run(true, "virtual");
+        System.out.println(pooled);
+        System.out.println(virtual);
+    }
+
+    private Result run(boolean virtualThreads, String name) throws Exception {
+        ServletWebServerApplicationContext context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(
+                CollaboratorServerApplication.class)
+                .properties("server.port=0",
+                        "editor.log.directory=" + logDirectory.resolve(name),
+                        // Small segments, so the run includes rollovers
+                        "editor.log.segment-bytes=4096",
+                        "editor.virtual-threads=" + virtualThreads)
+                .run();
+        WebSocketStompClient stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+        try {
+            return load(context, stompClient, name);
+        } finally {
+            stompClient.stop();
+            context.close();
+        }
+    }
+
+    private Result load(ServletWebServerApplicationContext context, WebSocketStompClient stompClient, String name)
+            throws Exception {
+        String url = "ws://localhost:" + context.getWebServer().getPort() + "/collaborative-editor/ws";
+        DocumentService documentService = context.getBean(DocumentService.class);
+        List<String> documentIds = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documentIds.add(documentService.createDocument().getId());
+        }
+
+        int connections = DOCUMENTS * CONNECTIONS_PER_DOCUMENT;
+        List<CompletableFuture<StompSession>> connecting = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            connecting.add(stompClient.connectAsync(url, new StompSessionHandlerAdapter() {
+            }));
+        }
+        List<StompSession> sessions = new ArrayList<>();
+        for (CompletableFuture<StompSession> future : connecting) {
+            try {
+                sessions.add(future.get(30, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                System.out.println(name + ": connection failed: " + e);
+            }
+        }
+        assertEquals(connections, sessions.size(), "connections opened");
+
+        // Send time of every operation, and the delay until each delivery
+        Map<Long, Long> sentAt = new ConcurrentHashMap<>();
+        long[] delays = new long[connections * OPERATIONS_PER_DOCUMENT];
+        AtomicInteger deliveries = new AtomicInteger();
+        CountDownLatch delivered = new CountDownLatch(delays.length);
+        for (int i = 0; i < sessions.size(); i++) {
+            String documentId = documentIds.get(i % DOCUMENTS);
+            sessions.get(i).subscribe("/topic/document/" + documentId, new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return CRDTOperation.class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    long now = System.nanoTime();
+                    Long sent = sentAt.get(((CRDTOperation) payload).id);
+                    int index = deliveries.getAndIncrement();
+                    if (sent != null && index < delays.length) {
+                        delays[index] = now - sent;
+                    }
+                    delivered.countDown();
+                }
+            });
+        }
+
+        SimpUserRegistry users = context.getBean(SimpUserRegistry.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (users.findSubscriptions(s -> s.getDestination().startsWith("/topic/document/")).size() < connections
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // The first session of each document types into it
+        List<Thread> writers = new ArrayList<>();
+        for (int d = 0; d < DOCUMENTS; d++) {
+            StompSession writer = sessions.get(d);
+            String destination = "/app/operations/" + documentIds.get(d);
+            CRDTManager client = new CRDTManager(d + 1);
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < OPERATIONS_PER_DOCUMENT; i++) {
+                    CRDTOperation op = client.createInsertOperation((char) ('a' + i % 26), i);
+                    sentAt.put(op.id, System.nanoTime());
+                    writer.send(destination, op);
+                    try {
+                        Thread.sleep(TYPING_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue(delivered.await(60, TimeUnit.SECONDS), name + ": " + delivered.getCount() + " deliveries missing");
+        for (StompSession session : sessions) {
+            session.disconnect();
+        }
+        return new Result(name, sessions.size(), delays);
+    }
+
+    private static class Result {
+        final String name;
+        final int connections;
+        final long[] nanos;
+
+        Result(String name, int connections, long[] nanos) {
+            this.name = name;
+            this.connections = connections;
+            this.nanos = nanos.clone();
+            Arrays.sort(this.nanos);
+        }
+
+        double percentileMillis(double percentile) {
+            int index = Math.min(nanos.length - 1, (int) Math.ceil(percentile * nanos.length) - 1);
+            return nanos[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d connections, %d deliveries, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, "
+                    + "max %.3f ms", name, connections, nanos.length, percentileMillis(0.5),
+                    percentileMillis(0.99), percentileMillis(0.999), nanos[nanos.length - 1] / 1e6);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.server.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.OperationCodec;
+import com.example.messaging.BinaryOperationMessageConverter;
+import com.example.server.model.Document;
+import com.example.server.repository.DocumentRepository;
+import com.example.server.repository.GroupCommit;
+import com.example.server.repository.OperationLogStore;
+import com.example.server.service.DocumentExecutor;
+import com.example.server.service.DocumentService;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+/**
+ * Many clients editing several documents at once, their operations arriving
+ * on as many threads as the inbound channel would use. Every operation has to
+ * be sequenced and broadcast exactly once, in sequence order per document.
+ */
+class WebSocketControllerStressTest {
+    private static final int DOCUMENTS = 8;
+    private static final int CLIENTS_PER_DOCUMENT = 4;
+    private static final int OPERATIONS_PER_CLIENT = 500;
+
+    @TempDir
+    Path logDirectory;
+
+    private OperationLogStore operationLogStore;
+    private GroupCommit groupCommit;
+    private DocumentExecutor documentExecutor;
+    private DocumentService documentService;
+    private WebSocketController controller;
+
+    // Operations broadcast on each document's binary topic, in publish order
+    private final Map<String, List<CRDTOperation>> broadcasts = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        operationLogStore = new OperationLogStore(logDirectory.toString(), 1 << 20);
+        groupCommit = new GroupCommit(operationLogStore, 2, 65536);
+        documentExecutor = new DocumentExecutor(4, false);
+        documentService = new DocumentService(new DocumentRepository(operationLogStore, groupCommit));
+
+        SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> record(message));
+        template.setMessageConverter(new CompositeMessageConverter(
+                List.of(new BinaryOperationMessageConverter(), new MappingJackson2MessageConverter())));
+        controller = new WebSocketController(template, documentService, documentExecutor);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        documentExecutor.shutdown();
+        groupCommit.close();
+        operationLogStore.close();
+    }
+
+    @Test
+    void everyOperationIsBroadcastOnceInSequenceOrder() throws Exception {
+        List<String> documentIds = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documentIds.add(documentService.createDocument().getId());
+        }
+
+        // Each client types after its own text and sometimes deletes some of
+        // it, so its operations only depend on its own earlier ones
+        Map<String, List<CRDTManager>> clients = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        int site = 1;
+        for (String documentId : documentIds) {
+            for (int c = 0; c < CLIENTS_PER_DOCUMENT; c++) {
+                CRDTManager client = new CRDTManager(site);
+                clients.computeIfAbsent(documentId, k -> new ArrayList<>()).add(client);
+                Random random = new Random(site++);
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPERATIONS_PER_CLIENT; i++) {
+                        int length = client.getText().length();
+                        CRDTOperation op = length > 1 && random.nextInt(4) == 0
+                                ? client.createDeleteOperation(random.nextInt(length))
+                                : client.createInsertOperation((char) ('a' + random.nextInt(26)), length);
+                        controller.handleOperation(documentId, op);
+                    }
+                }));
+            }
+        }
+
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int expected = CLIENTS_PER_DOCUMENT * OPERATIONS_PER_CLIENT;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (broadcastCount() < expected * DOCUMENTS && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        for (String documentId : documentIds) {
+            List<CRDTOperation> ops = broadcasts.getOrDefault(documentId, List.of());
+            assertEquals(expected, ops.size(), "operations broadcast for " + documentId);
+            for (int i = 0; i < ops.size(); i++) {
+                assertEquals(i + 1, ops.get(i).seq, "sequence number of broadcast " + i);
+            }
+
+            // A replica fed the broadcasts ends up with the server's text, and
+            // each client's text is in it unchanged
+            CRDTManager replica = new CRDTManager(0);
+            replica.applyOperations(ops);
+            Document document = documentService.getDocument(documentId);
+            assertEquals(document.getContent(), replica.buildText());
+            for (CRDTManager client : clients.get(documentId)) {
+                assertTrue(document.getContent().contains(client.buildText()));
+            }
+        }
+    }
+
+    private boolean record(Message<?> message) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        String prefix = "/topic/document/";
+        if (destination != null && destination.startsWith(prefix) && destination.endsWith("/binary")) {
+            String documentId = destination.substring(prefix.length(), destination.length() - "/binary".length());
+            List<CRDTOperation> ops = broadcasts.computeIfAbsent(documentId, k -> new ArrayList<>());
+            synchronized (ops) {
+                ops.add(OperationCodec.decode((byte[]) message.getPayload()));
+            }
+        }
+        return true;
+    }
+
+    private int broadcastCount() {
+        int count = 0;
+        for (List<CRDTOperation> ops : broadcasts.values()) {
+            synchronized (ops) {
+                count += ops.size();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.server.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.example.crdt.CRDTManager;
+import com.example.crdt.CRDTOperation;
+import com.example.crdt.OperationCodec;
+import com.example.messaging.BinaryOperationMessageConverter;
+import com.example.server.repository.DocumentRepository;
+import com.example.server.repository.GroupCommit;
+import com.example.server.repository.OperationLogStore;
+import com.example.server.service.DocumentExecutor;
+import com.example.server.service.DocumentService;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * The controller behind a simple broker, with the message converters the
+ * application registers, and a session subscribed the way a client would
+ */
+class WebSocketControllerTest {
+    private static final String SESSION = "session";
+
+    @TempDir
+    Path logDirectory;
+
+    private OperationLogStore operationLogStore;
+    private GroupCommit groupCommit;
+    private DocumentExecutor documentExecutor;
+    private DocumentService documentService;
+    private SimpleBrokerMessageHandler broker;
+    private WebSocketController controller;
+
+    // Messages the broker hands to the session
+    private final BlockingQueue<Message<?>> delivered = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        operationLogStore = new OperationLogStore(logDirectory.toString(), 1 << 20);
+        groupCommit = new GroupCommit(operationLogStore, 2, 65536);
+        documentExecutor = new DocumentExecutor(2, false);
+        documentService = new DocumentService(new DocumentRepository(operationLogStore, groupCommit));
+
+        ExecutorSubscribableChannel clientInbound = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel clientOutbound = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+        clientOutbound.subscribe(delivered::add);
+        broker = new SimpleBrokerMessageHandler(clientInbound, clientOutbound, brokerChannel, List.of("/topic"));
+        brokerChannel.subscribe(broker);
+        broker.start();
+        connect();
+
+        SimpMessagingTemplate template = new SimpMessagingTemplate(brokerChannel);
+        template.setMessageConverter(new CompositeMessageConverter(List.of(new BinaryOperationMessageConverter(),
+                new StringMessageConverter(), new ByteArrayMessageConverter(),
+                new MappingJackson2MessageConverter())));
+        controller = new WebSocketController(template, documentService, documentExecutor);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        broker.stop();
+        documentExecutor.shutdown();
+        groupCommit.close();
+        operationLogStore.close();
+    }
+
+    @Test
+    void binaryTopicCarriesCodecFrames() throws Exception {
+        String documentId = documentService.createDocument().getId();
+        subscribe("/topic/document/" + documentId + "/binary");
+
+        CRDTManager client = new CRDTManager(1);
+        CRDTOperation op = client.createInsertOperation('a', 0);
+        controller.handleOperation(documentId, op);
+
+        Message<?> message = delivered.poll(10, TimeUnit.SECONDS);
+        assertNotNull(message, "no operation broadcast");
+        assertEquals(BinaryOperationMessageConverter.CONTENT_TYPE,
+                message.getHeaders().get(MessageHeaders.CONTENT_TYPE));
+
+        CRDTOperation decoded = OperationCodec.decode((byte[]) message.getPayload());
+        assertEquals(op.id, decoded.id);
+        assertEquals(op.character, decoded.character);
+        assertEquals(1, decoded.seq);
+    }
+
+    private void connect() {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+        headers.setSessionId(SESSION);
+        broker.handleMessage(MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders()));
+        // The broker answers with CONNECT_ACK
+        delivered.clear();
+    }
+
+    private void subscribe(String destination) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        headers.setSessionId(SESSION);
+        headers.setSubscriptionId("sub-" + destination);
+        headers.setDestination(destination);
+        broker.handleMessage(MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders()));
+    }
+}